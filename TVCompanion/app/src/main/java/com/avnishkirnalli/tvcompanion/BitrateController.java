@@ -0,0 +1,146 @@
+package com.avnishkirnalli.tvcompanion;
+
+/**
+ * Receiver-driven congestion control for the video encoder.
+ * Each feedback interval the controller looks at the loss fraction, interarrival jitter and delay gradient
+ * reported by the phone and moves the target bitrate: it backs off in proportion to heavy loss, backs off
+ * when the delay gradient shows a queue building faster than jitter alone explains, and otherwise probes
+ * upwards slowly. The target always stays between minBitRate and maxBitRate.
+ */
+public class BitrateController {
+    public interface Listener {
+        /** Called on the RTCP thread when the target has moved far enough to be worth applying. */
+        void onBitRateChanged(int bitRate);
+    }
+
+    public enum Decision {
+        HOLD,
+        INCREASE,
+        DECREASE_LOSS,
+        DECREASE_DELAY
+    }
+
+    private static final int CLOCK_RATE = 90000;
+    private static final float HIGH_LOSS = 0.10f; // Above this, back off in proportion to the loss
+    private static final float LOW_LOSS = 0.02f; // Below this (and no queueing), probe upwards
+    private static final float INCREASE_FACTOR = 1.08f;
+    private static final float DELAY_BACKOFF_FACTOR = 0.85f;
+    private static final long OVERUSE_THRESHOLD_US_PER_S = 10_000; // Queue growth per second treated as overuse
+    private static final float GRADIENT_SMOOTHING = 0.5f;
+    private static final long HOLD_AFTER_DECREASE_MS = 2000; // Don't probe straight back into congestion
+    private static final float MIN_CHANGE_RATIO = 0.03f; // Smaller changes aren't worth an encoder reconfigure
+
+    private final int minBitRate;
+    private final int maxBitRate;
+    private final Listener listener;
+
+    private volatile int targetBitRate;
+    private int appliedBitRate;
+    private long lastDecreaseMs = 0;
+
+    // Latest feedback
+    private volatile float fractionLost = 0f;
+    private volatile long jitterUs = 0;
+    private volatile long smoothedGradientUsPerS = 0;
+
+    // Metrics
+    private volatile Decision lastDecision = Decision.HOLD;
+    private volatile long increases = 0;
+    private volatile long decreases = 0;
+
+    public BitrateController(int initialBitRate, int minBitRate, int maxBitRate, Listener listener) {
+        this.minBitRate = minBitRate;
+        this.maxBitRate = Math.max(minBitRate, maxBitRate);
+        this.listener = listener;
+        this.targetBitRate = clamp(initialBitRate);
+        this.appliedBitRate = initialBitRate;
+    }
+
+    public void onReceiverReport(int fractionLost, long jitter) {
+        this.fractionLost = fractionLost / 256f;
+        this.jitterUs = jitter * 1_000_000 / CLOCK_RATE;
+    }
+
+    /** Runs one control step. Comes after onReceiverReport() for the same interval. */
+    public void onDelayGradient(long delayGradientUs, long intervalMs) {
+        if (intervalMs <= 0) {
+            return;
+        }
+        long gradientUsPerS = delayGradientUs * 1000 / intervalMs;
+        smoothedGradientUsPerS += (long) (GRADIENT_SMOOTHING * (gradientUsPerS - smoothedGradientUsPerS));
+
+        long now = System.nanoTime() / 1_000_000;
+        float loss = fractionLost;
+        // Delay variation within the jitter is noise, not a queue
+        boolean overuse = smoothedGradientUsPerS > Math.max(OVERUSE_THRESHOLD_US_PER_S, jitterUs);
+
+        int target = targetBitRate;
+        Decision decision;
+        if (loss > HIGH_LOSS) {
+            target = (int) (target * (1 - loss / 2));
+            decision = Decision.DECREASE_LOSS;
+        } else if (overuse) {
+            target = (int) (target * DELAY_BACKOFF_FACTOR);
+            decision = Decision.DECREASE_DELAY;
+        } else if (loss < LOW_LOSS && now - lastDecreaseMs >= HOLD_AFTER_DECREASE_MS) {
+            target = (int) (target * INCREASE_FACTOR);
+            decision = Decision.INCREASE;
+        } else {
+            decision = Decision.HOLD;
+        }
+
+        if (decision == Decision.DECREASE_LOSS || decision == Decision.DECREASE_DELAY) {
+            lastDecreaseMs = now;
+            decreases++;
+        } else if (decision == Decision.INCREASE) {
+            increases++;
+        }
+        lastDecision = decision;
+        targetBitRate = clamp(target);
+
+        if (Math.abs(targetBitRate - appliedBitRate) >= appliedBitRate * MIN_CHANGE_RATIO) {
+            appliedBitRate = targetBitRate;
+            listener.onBitRateChanged(appliedBitRate);
+        }
+    }
+
+    private int clamp(int bitRate) {
+        return Math.max(minBitRate, Math.min(maxBitRate, bitRate));
+    }
+
+    public int getTargetBitRate() {
+        return targetBitRate;
+    }
+
+    public int getMinBitRate() {
+        return minBitRate;
+    }
+
+    public int getMaxBitRate() {
+        return maxBitRate;
+    }
+
+    public Decision getLastDecision() {
+        return lastDecision;
+    }
+
+    public long getIncreases() {
+        return increases;
+    }
+
+    public long getDecreases() {
+        return decreases;
+    }
+
+    public float getFractionLost() {
+        return fractionLost;
+    }
+
+    public long getJitterUs() {
+        return jitterUs;
+    }
+
+    public long getDelayGradientUsPerS() {
+        return smoothedGradientUsPerS;
+    }
+}
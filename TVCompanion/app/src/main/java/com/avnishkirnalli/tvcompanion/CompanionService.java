@@ -13,13 +13,26 @@ import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 public class CompanionService extends Service {
     private static final String TAG = "CompanionService";
 
+    // Line-based commands on the control socket; the connection itself keeps the stream alive
+    private static final String COMMAND_STATS = "STATS"; // Answered with one line of JSON
+    // Answered with "PONG <microseconds>" on the System.nanoTime() clock that frame capture times are on, so the
+    // controller can work out the offset between the two clocks
+    private static final String COMMAND_PING = "PING";
+
     private Thread socketThread;
     private ServerSocket serverSocket;
 
@@ -113,9 +126,23 @@ public class CompanionService extends Service {
                 Log.d(TAG, "Requested to start ScreenStreamingService for client: " + clientIp);
             }
 
-            // Keep the connection alive to detect when the client disconnects.
-            //noinspection ResultOfMethodCallIgnored
-            clientSocket.getInputStream().read();
+            // Keep the connection alive to detect when the client disconnects, answering commands meanwhile.
+            // Replies are small and timing sensitive, so they shouldn't wait for Nagle's algorithm.
+            clientSocket.setTcpNoDelay(true);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = clientSocket.getOutputStream();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String command = line.trim();
+                if (COMMAND_PING.equals(command)) {
+                    out.write(("PONG " + System.nanoTime() / 1000 + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } else if (COMMAND_STATS.equals(command)) {
+                    out.write((statsSnapshot() + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            }
 
         } catch (IOException e) {
             Log.d(TAG, "Control client disconnected.");
@@ -133,6 +160,16 @@ public class CompanionService extends Service {
         }
     }
 
+    private String statsSnapshot() {
+        StreamMetrics metrics = StreamMetrics.getCurrent();
+        try {
+            return metrics != null ? metrics.toJson().toString() : new JSONObject().toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to build stats snapshot", e);
+            return "{}";
+        }
+    }
+
     private void advertiseService(int port) {
         if (nsdHelperService != null) {
             unbindService(nsdConnection);
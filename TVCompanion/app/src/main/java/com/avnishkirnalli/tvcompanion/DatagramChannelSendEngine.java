@@ -0,0 +1,36 @@
+package com.avnishkirnalli.tvcompanion;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends RTP packets through a connected DatagramChannel.
+ * The destination is resolved and bound once when the channel is connected, and every packet is
+ * written as a gathering write of the header and the payload slice, so the payload goes to the
+ * socket straight from the codec buffer without an intermediate copy.
+ */
+public class DatagramChannelSendEngine implements RtpSendEngine {
+    private final DatagramChannel channel;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    public DatagramChannelSendEngine(String destIp, int destPort) throws IOException {
+        channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress(destIp, destPort));
+    }
+
+    @Override
+    public synchronized void send(ByteBuffer header, ByteBuffer payload) throws IOException {
+        gather[0] = header;
+        gather[1] = payload;
+        channel.write(gather);
+        gather[0] = null;
+        gather[1] = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,50 @@
+package com.avnishkirnalli.tvcompanion;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends RTP packets through a plain DatagramSocket.
+ * Header and payload are copied into a small rotating pool of send buffers, each with a
+ * DatagramPacket already addressed to the destination, so nothing is allocated per packet.
+ */
+public class DatagramSocketSendEngine implements RtpSendEngine {
+    private static final int SEND_BUFFER_POOL_SIZE = 4;
+    private static final int SEND_BUFFER_SIZE = 2048;
+
+    private final DatagramSocket udpSocket;
+    private final byte[][] sendBuffers = new byte[SEND_BUFFER_POOL_SIZE][SEND_BUFFER_SIZE];
+    private final DatagramPacket[] sendPackets = new DatagramPacket[SEND_BUFFER_POOL_SIZE];
+    private int nextSendBuffer = 0;
+
+    public DatagramSocketSendEngine(String destIp, int destPort) throws IOException {
+        InetAddress destAddr = InetAddress.getByName(destIp);
+        udpSocket = new DatagramSocket();
+        for (int i = 0; i < SEND_BUFFER_POOL_SIZE; i++) {
+            sendPackets[i] = new DatagramPacket(sendBuffers[i], SEND_BUFFER_SIZE, destAddr, destPort);
+        }
+    }
+
+    @Override
+    public synchronized void send(ByteBuffer header, ByteBuffer payload) throws IOException {
+        byte[] buffer = sendBuffers[nextSendBuffer];
+        DatagramPacket packet = sendPackets[nextSendBuffer];
+        nextSendBuffer = (nextSendBuffer + 1) % SEND_BUFFER_POOL_SIZE;
+
+        int headerLength = header.remaining();
+        int payloadLength = payload.remaining();
+        header.get(buffer, 0, headerLength);
+        payload.get(buffer, headerLength, payloadLength);
+
+        packet.setLength(headerLength + payloadLength);
+        udpSocket.send(packet);
+    }
+
+    @Override
+    public void close() {
+        udpSocket.close();
+    }
+}
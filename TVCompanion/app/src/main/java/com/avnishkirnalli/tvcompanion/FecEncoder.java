@@ -0,0 +1,192 @@
+package com.avnishkirnalli.tvcompanion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * RFC 5109 XOR forward error correction for the RTP video stream.
+ * Media packets are passed through unchanged, and after every groupSize packets one FEC packet carrying the
+ * XOR parity of the group is sent as a separate stream (own SSRC, sequence numbers and payload type).
+ * Groups span access units, so the many P-frames of only one to three packets share a parity packet instead of each
+ * getting their own. A group that is still short is closed at the end of the first frame at least MAX_GROUP_SPAN_MS
+ * after its first packet, which bounds how long a loss near the end of a frame waits for its parity.
+ * The receiver can rebuild any single lost packet of a group from the others and the parity packet.
+ */
+public class FecEncoder implements RtpSendEngine {
+    public static final int FEC_PAYLOAD_TYPE = 127;
+    public static final int MAX_GROUP_SIZE = 16; // The level 0 mask with L=0 covers 16 packets
+    public static final int MAX_GROUP_SPAN_MS = 40;
+
+    private static final int CLOCK_RATE = 90000;
+    private static final int MAX_GROUP_SPAN_TICKS = MAX_GROUP_SPAN_MS * CLOCK_RATE / 1000;
+
+    private static final int RTP_HEADER_LENGTH = 12;
+    private static final int FEC_HEADER_LENGTH = 10;
+    private static final int ULP_LEVEL_HEADER_LENGTH = 4;
+    private static final int MAX_PROTECTED_LENGTH = 2048;
+
+    private final RtpSendEngine downstream;
+    private volatile int pendingGroupSize;
+    private int groupSize;
+
+    // FEC stream identity
+    private final long fecSsrc;
+    private int fecSequenceNumber = 0;
+
+    // Parity of the group being built
+    private final ByteBuffer parity = ByteBuffer.allocate(MAX_PROTECTED_LENGTH);
+    private int groupCount = 0;
+    private int snBase = 0;
+    private int groupStartTimestamp = 0;
+    private int timestamp = 0;
+    private byte byte0Recovery = 0;
+    private byte byte1Recovery = 0;
+    private int tsRecovery = 0;
+    private int lengthRecovery = 0;
+    private int protectionLength = 0;
+
+    private final ByteBuffer fecHeader = ByteBuffer.allocate(RTP_HEADER_LENGTH + FEC_HEADER_LENGTH + ULP_LEVEL_HEADER_LENGTH);
+
+    // Stats
+    private volatile long mediaPackets = 0;
+    private volatile long fecPackets = 0;
+    private volatile long mediaBytes = 0;
+    private volatile long fecBytes = 0;
+
+    public FecEncoder(RtpSendEngine downstream, int groupSize) {
+        if (groupSize < 2 || groupSize > MAX_GROUP_SIZE) {
+            throw new IllegalArgumentException("FEC group size must be between 2 and " + MAX_GROUP_SIZE);
+        }
+        this.downstream = downstream;
+        this.groupSize = groupSize;
+        this.pendingGroupSize = groupSize;
+        this.fecSsrc = new Random().nextLong() & 0xFFFFFFFFL;
+    }
+
+    /** Changes how many media packets share a parity packet, from the next group on. */
+    public void setGroupSize(int groupSize) {
+        pendingGroupSize = Math.max(2, Math.min(MAX_GROUP_SIZE, groupSize));
+    }
+
+    public int getGroupSize() {
+        return pendingGroupSize;
+    }
+
+    @Override
+    public void send(ByteBuffer header, ByteBuffer payload) throws IOException {
+        int headerStart = header.position();
+        int headerLength = header.remaining();
+        int protectedLength = headerLength - RTP_HEADER_LENGTH + payload.remaining();
+        boolean marker = (header.get(headerStart + 1) & 0x80) != 0;
+
+        if (groupCount == 0) {
+            groupSize = pendingGroupSize;
+            Arrays.fill(parity.array(), 0, protectionLength, (byte) 0);
+            protectionLength = 0;
+            snBase = header.getShort(headerStart + 2) & 0xFFFF;
+            groupStartTimestamp = header.getInt(headerStart + 4);
+            byte0Recovery = 0;
+            byte1Recovery = 0;
+            tsRecovery = 0;
+            lengthRecovery = 0;
+        }
+
+        // Header fields protected by the FEC header (RFC 5109 7.3)
+        byte0Recovery ^= header.get(headerStart);
+        byte1Recovery ^= header.get(headerStart + 1);
+        timestamp = header.getInt(headerStart + 4);
+        tsRecovery ^= timestamp;
+        lengthRecovery ^= protectedLength;
+
+        // Everything after the fixed RTP header is protected: extra header bytes (FU-A) first, then the payload
+        int offset = xorInto(header, headerStart + RTP_HEADER_LENGTH, headerLength - RTP_HEADER_LENGTH, 0);
+        xorInto(payload, payload.position(), payload.remaining(), offset);
+        protectionLength = Math.max(protectionLength, protectedLength);
+        groupCount++;
+        mediaPackets++;
+        mediaBytes += headerLength + payload.remaining();
+
+        downstream.send(header, payload);
+
+        if (groupCount == groupSize || (marker && timestamp - groupStartTimestamp >= MAX_GROUP_SPAN_TICKS)) {
+            sendFecPacket();
+        }
+    }
+
+    private int xorInto(ByteBuffer source, int index, int length, int parityOffset) {
+        int end = index + length;
+        // Eight bytes at a time, then the tail
+        while (index + 8 <= end) {
+            parity.putLong(parityOffset, parity.getLong(parityOffset) ^ source.getLong(index));
+            index += 8;
+            parityOffset += 8;
+        }
+        while (index < end) {
+            parity.put(parityOffset, (byte) (parity.get(parityOffset) ^ source.get(index)));
+            index++;
+            parityOffset++;
+        }
+        return parityOffset;
+    }
+
+    private void sendFecPacket() throws IOException {
+        int mask = ((1 << groupCount) - 1) << (16 - groupCount);
+
+        fecHeader.clear();
+        // RTP header of the FEC stream
+        fecHeader.put((byte) 0x80);
+        fecHeader.put((byte) FEC_PAYLOAD_TYPE);
+        fecHeader.putShort((short) fecSequenceNumber);
+        fecHeader.putInt(timestamp);
+        fecHeader.putInt((int) fecSsrc);
+        // FEC header: E=0, L=0, P/X/CC recovery | M/PT recovery | SN base | TS recovery | length recovery
+        fecHeader.put((byte) (byte0Recovery & 0x3F));
+        fecHeader.put(byte1Recovery);
+        fecHeader.putShort((short) snBase);
+        fecHeader.putInt(tsRecovery);
+        fecHeader.putShort((short) lengthRecovery);
+        // ULP level 0 header: protection length | mask
+        fecHeader.putShort((short) protectionLength);
+        fecHeader.putShort((short) mask);
+        fecHeader.flip();
+
+        parity.limit(protectionLength);
+        parity.position(0);
+        fecBytes += fecHeader.remaining() + protectionLength;
+        downstream.send(fecHeader, parity);
+        parity.clear();
+
+        fecSequenceNumber = (fecSequenceNumber + 1) & 0xFFFF;
+        fecPackets++;
+        groupCount = 0;
+    }
+
+    public long getMediaPackets() {
+        return mediaPackets;
+    }
+
+    public long getFecPackets() {
+        return fecPackets;
+    }
+
+    public long getMediaBytes() {
+        return mediaBytes;
+    }
+
+    public long getFecBytes() {
+        return fecBytes;
+    }
+
+    /** FEC bytes sent per media byte, i.e. the bandwidth overhead of the parity stream. */
+    public float getOverheadRatio() {
+        long media = mediaBytes;
+        return media == 0 ? 0f : (float) fecBytes / media;
+    }
+
+    @Override
+    public void close() throws IOException {
+        downstream.close();
+    }
+}
@@ -0,0 +1,256 @@
+package com.avnishkirnalli.tvcompanion;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Moves packetization and sending off the MediaCodec callback thread.
+ * The encoder thread copies each access unit into a preallocated single-producer / single-consumer ring and can
+ * release the codec buffer straight away; a dedicated thread takes frames off the ring and hands them to the
+ * RtpStreamer. A slow socket therefore backs up the ring instead of the encoder.
+ * When the ring is full the new frame is dropped, and so is every frame after it up to the next keyframe, since
+ * those would only decode into garbage. A keyframe is requested to end the gap quickly.
+ * The sender thread also keeps latency bounded when the network stalls: once the frame it is about to send is
+ * older than the drop threshold (capture time plus what is still queued downstream), frames nothing else refers
+ * to (nal_ref_idc == 0) are dropped, and past the skip threshold everything is dropped up to a fresh keyframe.
+ */
+public class FrameSender {
+    private static final String TAG = "FrameSender";
+    private static final int INITIAL_SLOT_CAPACITY = 128 * 1024; // Slots grow to the largest frame seen
+    private static final long IDLE_PARK_NANOS = 5_000_000L;
+    private static final int NAL_UNIT_TYPE_IDR = 5;
+
+    public interface KeyFrameRequester {
+        void requestKeyFrame();
+    }
+
+    private final RtpStreamer rtpStreamer;
+    private final KeyFrameRequester keyFrameRequester;
+    private final int slotCount;
+
+    private final ByteBuffer[] slots;
+    private final MediaCodec.BufferInfo[] slotInfos;
+    private final long[] enqueueTimesNs;
+    private volatile long head = 0; // Next frame to send, advanced by the sender thread
+    private volatile long tail = 0; // Next slot to fill, advanced by the encoder thread
+
+    private final Thread senderThread;
+    private volatile boolean running = true;
+    private boolean dropUntilKeyFrame = false; // Encoder thread only
+
+    // Latency bounds, checked on the sender thread
+    private volatile long dropNonReferenceLagUs = Long.MAX_VALUE;
+    private volatile long skipToKeyFrameLagUs = Long.MAX_VALUE;
+    private volatile LongSupplier downstreamDelayUs = () -> 0;
+    private boolean skippingToKeyFrame = false; // Sender thread only
+    private final NalUnitIndex nalUnits = new NalUnitIndex();
+
+    // Metrics
+    private volatile int maxDepth = 0;
+    private volatile long droppedFrames = 0;
+    private volatile long lastQueueDelayUs = 0;
+    private volatile long lastSendLagUs = 0;
+    private volatile long nonReferenceDrops = 0;
+    private volatile long keyFrameSkipDrops = 0;
+
+    /** @param slotCount ring size, a power of two */
+    public FrameSender(RtpStreamer rtpStreamer, int slotCount, KeyFrameRequester keyFrameRequester) {
+        this.rtpStreamer = rtpStreamer;
+        this.slotCount = slotCount;
+        this.keyFrameRequester = keyFrameRequester;
+
+        slots = new ByteBuffer[slotCount];
+        slotInfos = new MediaCodec.BufferInfo[slotCount];
+        enqueueTimesNs = new long[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = ByteBuffer.allocateDirect(INITIAL_SLOT_CAPACITY);
+            slotInfos[i] = new MediaCodec.BufferInfo();
+        }
+
+        senderThread = new Thread(this::runSender, "RtpSender");
+        senderThread.start();
+    }
+
+    /**
+     * Bounds how far behind real time the send path may fall. downstreamDelayUs reports the queueing still ahead of
+     * a frame after it leaves this ring (the pacer), and is called on the sender thread.
+     */
+    public void setLatencyLimits(long dropNonReferenceLagUs, long skipToKeyFrameLagUs, LongSupplier downstreamDelayUs) {
+        this.downstreamDelayUs = downstreamDelayUs;
+        this.dropNonReferenceLagUs = dropNonReferenceLagUs;
+        this.skipToKeyFrameLagUs = skipToKeyFrameLagUs;
+    }
+
+    /**
+     * Copies an encoded buffer into the ring. Called on the encoder thread; the codec buffer can be released as
+     * soon as this returns.
+     */
+    public void submit(ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (!running) return;
+
+        boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (dropUntilKeyFrame && !config) {
+            if (!keyFrame) {
+                droppedFrames++;
+                return;
+            }
+            dropUntilKeyFrame = false;
+        }
+
+        long currentTail = tail;
+        int depth = (int) (currentTail - head);
+        if (depth >= slotCount) {
+            droppedFrames++;
+            if (!config) {
+                dropUntilKeyFrame = true;
+                keyFrameRequester.requestKeyFrame();
+            } else {
+                Log.e(TAG, "Dropped codec config buffer, the stream can't be decoded until it is sent again");
+            }
+            return;
+        }
+
+        int index = (int) (currentTail & (slotCount - 1));
+        ByteBuffer slot = slots[index];
+        if (slot.capacity() < info.size) {
+            slot = ByteBuffer.allocateDirect(Math.max(info.size, slot.capacity() * 2));
+            slots[index] = slot;
+        }
+
+        int limit = data.limit();
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        slot.clear();
+        slot.put(data);
+        slot.flip();
+        data.limit(limit);
+
+        slotInfos[index].set(0, info.size, info.presentationTimeUs, info.flags);
+        enqueueTimesNs[index] = System.nanoTime();
+
+        tail = currentTail + 1; // Publish
+        if (depth + 1 > maxDepth) {
+            maxDepth = depth + 1;
+        }
+        LockSupport.unpark(senderThread);
+    }
+
+    private void runSender() {
+        while (running) {
+            long currentHead = head;
+            if (currentHead == tail) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+
+            int index = (int) (currentHead & (slotCount - 1));
+            long nowNs = System.nanoTime();
+            lastQueueDelayUs = (nowNs - enqueueTimesNs[index]) / 1000;
+            if (shouldSend(slots[index], slotInfos[index], nowNs)) {
+                try {
+                    rtpStreamer.processBuffer(slots[index], slotInfos[index], enqueueTimesNs[index] / 1000);
+                } catch (IOException e) {
+                    if (running) {
+                        Log.e(TAG, "Failed to send RTP packet", e);
+                    }
+                }
+            }
+
+            head = currentHead + 1; // Free the slot
+        }
+    }
+
+    private boolean shouldSend(ByteBuffer frame, MediaCodec.BufferInfo info, long nowNs) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return true;
+        }
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+
+        // Presentation times of Surface input come from System.nanoTime()
+        long lagUs = nowNs / 1000 - info.presentationTimeUs + downstreamDelayUs.getAsLong();
+        lastSendLagUs = lagUs;
+
+        if (skippingToKeyFrame) {
+            if (keyFrame) {
+                skippingToKeyFrame = false;
+                return true;
+            }
+            keyFrameSkipDrops++;
+            return false;
+        }
+        if (keyFrame || lagUs <= dropNonReferenceLagUs) {
+            return true;
+        }
+        if (!isReferenced(frame, info)) {
+            nonReferenceDrops++;
+            return false;
+        }
+        if (lagUs > skipToKeyFrameLagUs) {
+            // Still falling behind with nothing cheap left to drop: start over from a new keyframe
+            Log.w(TAG, "Send path " + lagUs / 1000 + " ms behind, skipping to the next keyframe");
+            skippingToKeyFrame = true;
+            keyFrameSkipDrops++;
+            keyFrameRequester.requestKeyFrame();
+            return false;
+        }
+        return true;
+    }
+
+    // Whether any slice of the frame may be referenced by later frames (nal_ref_idc != 0)
+    private boolean isReferenced(ByteBuffer frame, MediaCodec.BufferInfo info) {
+        int nalCount = nalUnits.scan(frame, info.offset, info.offset + info.size);
+        for (int i = 0; i < nalCount; i++) {
+            int header = frame.get(nalUnits.getOffset(i));
+            int nalUnitType = header & 0x1F;
+            if (nalUnitType >= 1 && nalUnitType <= NAL_UNIT_TYPE_IDR && (header & 0x60) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getDepth() {
+        return (int) (tail - head);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getLastQueueDelayUs() {
+        return lastQueueDelayUs;
+    }
+
+    /** How far behind capture the last frame was when it reached the sender thread, including downstream queueing. */
+    public long getLastSendLagUs() {
+        return lastSendLagUs;
+    }
+
+    public long getNonReferenceDrops() {
+        return nonReferenceDrops;
+    }
+
+    public long getKeyFrameSkipDrops() {
+        return keyFrameSkipDrops;
+    }
+
+    public void close() {
+        running = false;
+        LockSupport.unpark(senderThread);
+        try {
+            senderThread.join(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.avnishkirnalli.tvcompanion;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket histogram for hot paths. Recording is a bucket scan and a few atomic increments,
+ * with no locking and no allocation; only toJson() allocates.
+ */
+public class Histogram {
+    private final long[] upperBounds; // Inclusive, ascending; one extra bucket catches everything above
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(long... upperBounds) {
+        this.upperBounds = upperBounds;
+        this.counts = new AtomicLongArray(upperBounds.length + 1);
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Smallest bucket bound that at least the given fraction of recorded values fall under, e.g. 0.99 for p99,
+     * or the largest value recorded if that is lower.
+     */
+    public long getPercentile(double fraction) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(n * fraction);
+        long seen = 0;
+        for (int i = 0; i < upperBounds.length; i++) {
+            seen += counts.get(i);
+            if (seen >= threshold) {
+                return Math.min(upperBounds[i], max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONArray bounds = new JSONArray();
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < upperBounds.length; i++) {
+            bounds.put(upperBounds[i]);
+            buckets.put(counts.get(i));
+        }
+        buckets.put(counts.get(upperBounds.length));
+
+        JSONObject json = new JSONObject();
+        json.put("count", getCount());
+        json.put("mean", getMean());
+        json.put("p50", getPercentile(0.5));
+        json.put("p99", getPercentile(0.99));
+        json.put("max", getMax());
+        json.put("bounds", bounds);
+        json.put("buckets", buckets);
+        return json;
+    }
+}
@@ -0,0 +1,121 @@
+package com.avnishkirnalli.tvcompanion;
+
+/**
+ * Quality of the link to the controller over one streaming session, built from its RTCP Receiver Reports:
+ * loss (the last report's fraction, a smoothed rate and the cumulative count), interarrival jitter, and the round
+ * trip time from the LSR/DLSR fields (RFC 3550 6.4.1). Rate and FEC decisions are made from these rather than
+ * from guesses.
+ * Updated on the RTCP receive thread; the getters can be read from anywhere.
+ */
+public class LinkQuality {
+    private static final int CLOCK_RATE = 90000;
+    private static final float LOSS_SMOOTHING = 0.25f;
+    private static final float RTT_SMOOTHING = 0.125f; // As for TCP's SRTT (RFC 6298)
+    private static final float FEC_PARITY_PER_LOSS = 2f; // Parity packets sent per packet expected to be lost
+
+    private final long startTimeMs = System.nanoTime() / 1_000_000;
+
+    private volatile long reports = 0;
+    private volatile float fractionLost = 0f;
+    private volatile float smoothedLoss = 0f;
+    private volatile long cumulativeLost = 0;
+    private volatile long packetsExpected = 0; // From the first report's extended highest sequence number on
+    private long firstExtendedHighestSeq = -1;
+    private volatile long jitterUs = 0;
+    private volatile long maxJitterUs = 0;
+
+    private volatile long rttUs = -1; // -1 until a report echoes a Sender Report
+    private volatile long smoothedRttUs = -1;
+    private volatile long minRttUs = -1;
+    private volatile long lastReportMs = 0;
+
+    /** The report block about our stream; jitter in RTP timestamp units. */
+    public void onReceiverReport(int fractionLost, long cumulativeLost, long extendedHighestSeq, long jitter) {
+        float loss = fractionLost / 256f;
+        this.fractionLost = loss;
+        smoothedLoss = reports == 0 ? loss : smoothedLoss + LOSS_SMOOTHING * (loss - smoothedLoss);
+        this.cumulativeLost = cumulativeLost;
+        if (firstExtendedHighestSeq < 0) {
+            firstExtendedHighestSeq = extendedHighestSeq;
+        }
+        packetsExpected = extendedHighestSeq - firstExtendedHighestSeq;
+
+        long jitterUs = jitter * 1_000_000 / CLOCK_RATE;
+        this.jitterUs = jitterUs;
+        if (jitterUs > maxJitterUs) {
+            maxJitterUs = jitterUs;
+        }
+        lastReportMs = System.nanoTime() / 1_000_000;
+        reports++;
+    }
+
+    /** A round trip measured from the LSR/DLSR of a report block. */
+    public void onRoundTripTime(long rttUs) {
+        this.rttUs = rttUs;
+        smoothedRttUs = smoothedRttUs < 0 ? rttUs : smoothedRttUs + (long) (RTT_SMOOTHING * (rttUs - smoothedRttUs));
+        if (minRttUs < 0 || rttUs < minRttUs) {
+            minRttUs = rttUs;
+        }
+    }
+
+    /**
+     * FEC group size that sends about FEC_PARITY_PER_LOSS parity packets per packet the smoothed loss rate says
+     * will be lost, within the given bounds. Few losses mean large groups and little overhead.
+     */
+    public int getFecGroupSize(int minGroupSize, int maxGroupSize) {
+        float loss = smoothedLoss;
+        if (loss <= 0f) {
+            return maxGroupSize;
+        }
+        int groupSize = (int) (1f / (FEC_PARITY_PER_LOSS * loss));
+        return Math.max(minGroupSize, Math.min(maxGroupSize, groupSize));
+    }
+
+    public long getReports() {
+        return reports;
+    }
+
+    /** Milliseconds since the last Receiver Report, or since the session started if there was none. */
+    public long getReportAgeMs() {
+        long last = lastReportMs;
+        return System.nanoTime() / 1_000_000 - (last != 0 ? last : startTimeMs);
+    }
+
+    /** Fraction of packets lost in the last report interval, 0 to 1. */
+    public float getFractionLost() {
+        return fractionLost;
+    }
+
+    public float getSmoothedLoss() {
+        return smoothedLoss;
+    }
+
+    public long getCumulativeLost() {
+        return cumulativeLost;
+    }
+
+    /** Packets the controller should have received since its first report. */
+    public long getPacketsExpected() {
+        return packetsExpected;
+    }
+
+    public long getJitterUs() {
+        return jitterUs;
+    }
+
+    public long getMaxJitterUs() {
+        return maxJitterUs;
+    }
+
+    public long getRttUs() {
+        return rttUs;
+    }
+
+    public long getSmoothedRttUs() {
+        return smoothedRttUs;
+    }
+
+    public long getMinRttUs() {
+        return minRttUs;
+    }
+}
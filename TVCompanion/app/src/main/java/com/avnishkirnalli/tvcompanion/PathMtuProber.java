@@ -0,0 +1,129 @@
+package com.avnishkirnalli.tvcompanion;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Path MTU discovery for the video stream.
+ * A round sends one don't-fragment probe per candidate MTU through the RTCP session and, after a short wait, picks
+ * the largest size the controller acknowledged. The first round runs at session start; later rounds re-validate the
+ * choice periodically, since Wi-Fi roaming or a VPN coming up can change the path. If the controller stops
+ * acknowledging even the smallest probes the current value is kept, and after several such rounds the prober falls
+ * back to the default.
+ */
+public class PathMtuProber {
+    private static final String TAG = "PathMtuProber";
+
+    // Common link MTUs: Ethernet/Wi-Fi, PPPoE, a few tunnel sizes, and the IPv6 minimum
+    private static final int[] CANDIDATE_MTUS = {1500, 1492, 1480, 1460, 1420, 1400, 1280};
+    private static final long PROBE_WAIT_MS = 500;
+    private static final long FIRST_RETRY_DELAY_MS = 1000;
+    private static final int MAX_FAILED_ROUNDS = 3;
+
+    public interface Listener {
+        /** A new path MTU (IP packet size) was chosen. Called on the RTCP thread. */
+        void onPathMtuChanged(int mtu);
+    }
+
+    private final RtcpSession rtcpSession;
+    private final int defaultMtu;
+    private final long revalidateIntervalMs;
+    private final Listener listener;
+    private Handler handler;
+
+    private int probeRound = 0;
+    private volatile int largestAckedSize = 0; // UDP payload size, for the current round
+    private int failedRounds = 0;
+
+    // Metrics
+    private volatile int pathMtu;
+    private volatile long rounds = 0;
+    private volatile long failures = 0;
+
+    private final Runnable sendProbesTask = this::sendProbes;
+    private final Runnable evaluateTask = this::evaluate;
+
+    public PathMtuProber(RtcpSession rtcpSession, int defaultMtu, long revalidateIntervalMs, Listener listener) {
+        this.rtcpSession = rtcpSession;
+        this.defaultMtu = defaultMtu;
+        this.revalidateIntervalMs = revalidateIntervalMs;
+        this.listener = listener;
+        this.pathMtu = defaultMtu;
+    }
+
+    /** Starts probing on the RTCP session's thread; the session must already be started. */
+    public void start() {
+        handler = rtcpSession.getHandler();
+        handler.post(sendProbesTask);
+    }
+
+    public void stop() {
+        if (handler != null) {
+            handler.removeCallbacks(sendProbesTask);
+            handler.removeCallbacks(evaluateTask);
+        }
+    }
+
+    /** Called on the RTCP receive thread. Acks of earlier rounds are ignored. */
+    public void onProbeAck(int probeId, int size) {
+        if (probeId >>> 16 != (probeRound & 0xFFFF)) {
+            return;
+        }
+        if (size > largestAckedSize) {
+            largestAckedSize = size;
+        }
+    }
+
+    private void sendProbes() {
+        probeRound++;
+        largestAckedSize = 0;
+        int overhead = rtcpSession.getHeaderOverhead();
+        for (int i = 0; i < CANDIDATE_MTUS.length; i++) {
+            int size = Math.min(CANDIDATE_MTUS[i] - overhead, RtcpSession.MAX_PROBE_SIZE);
+            rtcpSession.sendMtuProbe(((probeRound & 0xFFFF) << 16) | i, size);
+        }
+        handler.postDelayed(evaluateTask, PROBE_WAIT_MS);
+    }
+
+    private void evaluate() {
+        rounds++;
+        int acked = largestAckedSize;
+        long nextRoundMs = revalidateIntervalMs;
+
+        if (acked > 0) {
+            failedRounds = 0;
+            setPathMtu(acked + rtcpSession.getHeaderOverhead());
+        } else {
+            failures++;
+            failedRounds++;
+            if (failedRounds >= MAX_FAILED_ROUNDS) {
+                setPathMtu(defaultMtu);
+            }
+            if (rounds == failures) {
+                nextRoundMs = FIRST_RETRY_DELAY_MS; // Nothing learned yet, the controller may still be starting up
+            }
+        }
+        handler.postDelayed(sendProbesTask, nextRoundMs);
+    }
+
+    private void setPathMtu(int mtu) {
+        if (mtu == pathMtu) {
+            return;
+        }
+        Log.i(TAG, "Path MTU " + pathMtu + " -> " + mtu);
+        pathMtu = mtu;
+        listener.onPathMtuChanged(mtu);
+    }
+
+    public int getPathMtu() {
+        return pathMtu;
+    }
+
+    public long getRounds() {
+        return rounds;
+    }
+
+    public long getFailedRounds() {
+        return failures;
+    }
+}
@@ -0,0 +1,328 @@
+package com.avnishkirnalli.tvcompanion;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * RTCP companion of an RtpStreamer (RFC 3550).
+ * Periodically sends a compound Sender Report + SDES CNAME packet to the client's RTCP port,
+ * which gives the receiver the NTP wallclock to RTP timestamp mapping and the sender's packet/octet counts.
+ * The controller answers on the same socket with feedback, which is handed to the FeedbackListener.
+ */
+public class RtcpSession {
+    private static final String TAG = "RtcpSession";
+
+    private static final int RTCP_VERSION = 2;
+    private static final int PT_SR = 200;
+    private static final int PT_RR = 201;
+    private static final int PT_SDES = 202;
+    private static final int PT_APP = 204;
+    private static final int PT_RTPFB = 205;
+    private static final int PT_PSFB = 206;
+    private static final int FMT_GENERIC_NACK = 1;
+    private static final int FMT_PLI = 1;
+    private static final int FMT_FIR = 4;
+    private static final int MAX_PACKET_SIZE = 1500;
+    private static final int SDES_CNAME = 1;
+    private static final byte[] CNAME = "tvcompanion".getBytes(StandardCharsets.US_ASCII);
+    // Application-defined packets: delay gradient report from the controller, path MTU probes and their acks
+    private static final int APP_SUBTYPE_DELAY_GRADIENT = 0;
+    private static final int APP_SUBTYPE_MTU_PROBE = 1;
+    private static final int APP_SUBTYPE_MTU_PROBE_ACK = 2;
+    public static final int MAX_PROBE_SIZE = 1500;
+    // Linux socket options for "never fragment, fail with EMSGSIZE instead"; not exposed by OsConstants
+    private static final int IP_MTU_DISCOVER = 10;
+    private static final int IPV6_MTU_DISCOVER = 23;
+    private static final int PMTUDISC_DO = 2;
+    private static final byte[] APP_NAME = "TVCF".getBytes(StandardCharsets.US_ASCII);
+
+    // Seconds between 1900-01-01 (NTP epoch) and 1970-01-01 (Unix epoch)
+    private static final long NTP_UNIX_OFFSET_SECONDS = 2208988800L;
+
+    /** Receiver feedback, called on the RTCP receive thread. */
+    public interface FeedbackListener {
+        /** A Generic NACK entry (RFC 4585 6.2.1): pid is lost, and so is pid + i + 1 for every bit i set in blp. */
+        default void onNack(int pid, int blp) {}
+
+        /** The report block about our stream from a Receiver Report (RFC 3550 6.4.2); jitter is in RTP units. */
+        default void onReceiverReport(int fractionLost, long cumulativeLost, long extendedHighestSeq, long jitter) {}
+
+        /** Round trip to the controller, from a report block that echoes one of our Sender Reports. */
+        default void onRoundTripTime(long rttUs) {}
+
+        /**
+         * How much the one-way delay grew (positive) or shrank over the last intervalMs, summed frame by frame.
+         * Sent in the same compound packet as the Receiver Report, right after it.
+         */
+        default void onDelayGradient(long delayGradientUs, long intervalMs) {}
+
+        /** The receiver lost part of a picture (PLI, RFC 4585 6.3.1) or needs a fresh start (FIR, RFC 5104 4.3.1). */
+        default void onKeyFrameRequest(boolean fullIntraRequest) {}
+
+        /** The controller received MTU probe probeId, which was size bytes of UDP payload. */
+        default void onMtuProbeAck(int probeId, int size) {}
+    }
+
+    private final RtpStreamer rtpStreamer;
+    private final DatagramSocket socket;
+    private final long intervalMs;
+
+    private final byte[] sendBuffer = new byte[512];
+    private final ByteBuffer sendView = ByteBuffer.wrap(sendBuffer);
+    private final DatagramPacket sendPacket;
+    private final byte[] probeBuffer = new byte[MAX_PROBE_SIZE];
+    private final ByteBuffer probeView = ByteBuffer.wrap(probeBuffer);
+    private final DatagramPacket probePacket;
+
+    private HandlerThread rtcpThread;
+    private Handler handler;
+
+    private Thread receiveThread;
+    private volatile boolean running = false;
+    private FeedbackListener feedbackListener;
+
+    private final Runnable sendReportTask = new Runnable() {
+        @Override
+        public void run() {
+            sendSenderReport();
+            handler.postDelayed(this, intervalMs);
+        }
+    };
+
+    public RtcpSession(RtpStreamer rtpStreamer, String destIp, int destRtcpPort, long intervalMs) throws IOException {
+        this.rtpStreamer = rtpStreamer;
+        this.intervalMs = intervalMs;
+        this.socket = new DatagramSocket();
+        this.sendPacket = new DatagramPacket(sendBuffer, sendBuffer.length, new InetSocketAddress(destIp, destRtcpPort));
+        this.probePacket = new DatagramPacket(probeBuffer, probeBuffer.length, sendPacket.getSocketAddress());
+        setDontFragment();
+    }
+
+    // MTU probes must be dropped rather than fragmented on the way, or every size would look fine
+    private void setDontFragment() {
+        boolean ipv6 = sendPacket.getAddress() instanceof Inet6Address;
+        try (ParcelFileDescriptor fd = ParcelFileDescriptor.fromDatagramSocket(socket)) {
+            Os.setsockoptInt(fd.getFileDescriptor(), ipv6 ? OsConstants.IPPROTO_IPV6 : OsConstants.IPPROTO_IP,
+                    ipv6 ? IPV6_MTU_DISCOVER : IP_MTU_DISCOVER, PMTUDISC_DO);
+        } catch (ErrnoException | IOException e) {
+            Log.w(TAG, "Could not set DF on the RTCP socket, MTU probes may be fragmented", e);
+        }
+    }
+
+    /** Bytes of IP and UDP header in front of every datagram to the client. */
+    public int getHeaderOverhead() {
+        return sendPacket.getAddress() instanceof Inet6Address ? 48 : 28;
+    }
+
+    public void setFeedbackListener(FeedbackListener feedbackListener) {
+        this.feedbackListener = feedbackListener;
+    }
+
+    /** The RTCP thread's handler, for work that should run alongside the reports. Valid after start(). */
+    public Handler getHandler() {
+        return handler;
+    }
+
+    public void start() {
+        running = true;
+        rtcpThread = new HandlerThread("Rtcp");
+        rtcpThread.start();
+        handler = new Handler(rtcpThread.getLooper());
+        handler.postDelayed(sendReportTask, intervalMs);
+
+        receiveThread = new Thread(this::receiveLoop, "RtcpReceiver");
+        receiveThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (handler != null) {
+            handler.removeCallbacks(sendReportTask);
+        }
+        if (rtcpThread != null) {
+            rtcpThread.quitSafely();
+        }
+        socket.close(); // Also ends the receive loop
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (running) {
+            try {
+                socket.receive(packet);
+                processCompoundPacket(buffer, packet.getLength());
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "RTCP socket error", e);
+                }
+            }
+        }
+    }
+
+    private void processCompoundPacket(byte[] data, int length) {
+        FeedbackListener listener = feedbackListener;
+        if (listener == null) {
+            return;
+        }
+
+        int offset = 0;
+        while (offset + 4 <= length) {
+            int version = (data[offset] >> 6) & 0x03;
+            int format = data[offset] & 0x1F;
+            int packetType = data[offset + 1] & 0xFF;
+            int packetLength = (readUnsignedShort(data, offset + 2) + 1) * 4;
+            if (version != RTCP_VERSION || offset + packetLength > length) {
+                return;
+            }
+
+            if (packetType == PT_RR) {
+                processReportBlocks(data, offset + 8, Math.min(format, (packetLength - 8) / 24), listener);
+            } else if (packetType == PT_APP && format == APP_SUBTYPE_DELAY_GRADIENT && packetLength >= 20
+                    && hasName(data, offset + 8, APP_NAME)) {
+                listener.onDelayGradient(readInt(data, offset + 12), readInt(data, offset + 16) & 0xFFFFFFFFL);
+            } else if (packetType == PT_APP && format == APP_SUBTYPE_MTU_PROBE_ACK && packetLength >= 20
+                    && hasName(data, offset + 8, APP_NAME)) {
+                listener.onMtuProbeAck(readInt(data, offset + 12), readInt(data, offset + 16));
+            } else if (packetType == PT_PSFB && (format == FMT_PLI || format == FMT_FIR)) {
+                listener.onKeyFrameRequest(format == FMT_FIR);
+            } else if (packetType == PT_RTPFB && format == FMT_GENERIC_NACK) {
+                // Common feedback header: sender SSRC, media SSRC, then one FCI entry (pid, blp) per 32-bit word
+                for (int fci = offset + 12; fci + 4 <= offset + packetLength; fci += 4) {
+                    listener.onNack(readUnsignedShort(data, fci), readUnsignedShort(data, fci + 2));
+                }
+            }
+
+            offset += packetLength;
+        }
+    }
+
+    private void processReportBlocks(byte[] data, int offset, int count, FeedbackListener listener) {
+        for (int i = 0; i < count; i++, offset += 24) {
+            if ((readInt(data, offset) & 0xFFFFFFFFL) != rtpStreamer.getSsrc()) {
+                continue; // About some other stream
+            }
+            int fractionLost = data[offset + 4] & 0xFF;
+            long cumulativeLost = readInt(data, offset + 4) & 0xFFFFFF;
+            long extendedHighestSeq = readInt(data, offset + 8) & 0xFFFFFFFFL;
+            long jitter = readInt(data, offset + 12) & 0xFFFFFFFFL;
+            long lastSr = readInt(data, offset + 16) & 0xFFFFFFFFL;
+            long delaySinceLastSr = readInt(data, offset + 20) & 0xFFFFFFFFL;
+            listener.onReceiverReport(fractionLost, cumulativeLost, extendedHighestSeq, jitter);
+
+            if (lastSr != 0) {
+                // RTT = arrival - LSR - DLSR, all in the middle 32 bits of NTP time (1/65536 s)
+                long arrival = (toNtpTimestamp(System.currentTimeMillis()) >>> 16) & 0xFFFFFFFFL;
+                long rtt = (arrival - lastSr - delaySinceLastSr) & 0xFFFFFFFFL;
+                if (rtt < 0x80000000L) { // Otherwise negative, from a clock step
+                    listener.onRoundTripTime(rtt * 1_000_000 / 65536);
+                }
+            }
+        }
+    }
+
+    private static boolean hasName(byte[] data, int offset, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (data[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends an MTU probe: an APP packet padded to size bytes of UDP payload (a multiple of 4) that the controller
+     * acknowledges. Returns false if the local stack already refuses the size.
+     */
+    public boolean sendMtuProbe(int probeId, int size) {
+        probeView.clear();
+        probeView.put((byte) ((RTCP_VERSION << 6) | APP_SUBTYPE_MTU_PROBE));
+        probeView.put((byte) PT_APP);
+        probeView.putShort((short) (size / 4 - 1));
+        probeView.putInt((int) rtpStreamer.getSsrc());
+        probeView.put(APP_NAME);
+        probeView.putInt(probeId);
+        // The rest of the packet is left as padding; its content doesn't matter
+
+        probePacket.setLength(size);
+        try {
+            socket.send(probePacket);
+            return true;
+        } catch (IOException e) {
+            return false; // EMSGSIZE: larger than the MTU the stack knows for this route
+        }
+    }
+
+    private void sendSenderReport() {
+        long packetCount = rtpStreamer.getPacketCount();
+        if (packetCount == 0) {
+            return; // Nothing sent yet, so there is no RTP time to report
+        }
+
+        // Sample both clocks as close together as possible
+        long wallClockMs = System.currentTimeMillis();
+        long rtpTimestamp = rtpStreamer.toRtpTimestamp(System.nanoTime() / 1000);
+
+        sendView.clear();
+
+        // --- Sender Report (RFC 3550 6.4.1) ---
+        sendView.put((byte) (RTCP_VERSION << 6)); // V=2, P=0, RC=0
+        sendView.put((byte) PT_SR);
+        sendView.putShort((short) 6); // Length in 32-bit words minus one
+        sendView.putInt((int) rtpStreamer.getSsrc());
+        sendView.putLong(toNtpTimestamp(wallClockMs));
+        sendView.putInt((int) rtpTimestamp);
+        sendView.putInt((int) packetCount);
+        sendView.putInt((int) rtpStreamer.getOctetCount());
+
+        // --- SDES with CNAME (RFC 3550 6.5), required in every compound packet ---
+        int sdesStart = sendView.position();
+        sendView.put((byte) ((RTCP_VERSION << 6) | 1)); // SC=1
+        sendView.put((byte) PT_SDES);
+        sendView.putShort((short) 0); // Length, filled in below
+        sendView.putInt((int) rtpStreamer.getSsrc());
+        sendView.put((byte) SDES_CNAME);
+        sendView.put((byte) CNAME.length);
+        sendView.put(CNAME);
+        sendView.put((byte) 0); // END item
+        while ((sendView.position() - sdesStart) % 4 != 0) {
+            sendView.put((byte) 0);
+        }
+        sendView.putShort(sdesStart + 2, (short) ((sendView.position() - sdesStart) / 4 - 1));
+
+        sendPacket.setLength(sendView.position());
+        try {
+            socket.send(sendPacket);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to send RTCP Sender Report", e);
+        }
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (readUnsignedShort(data, offset) << 16) | readUnsignedShort(data, offset + 2);
+    }
+
+    private static long toNtpTimestamp(long wallClockMs) {
+        long seconds = wallClockMs / 1000 + NTP_UNIX_OFFSET_SECONDS;
+        long fraction = ((wallClockMs % 1000) << 32) / 1000;
+        return (seconds << 32) | fraction;
+    }
+}
@@ -0,0 +1,179 @@
+package com.avnishkirnalli.tvcompanion;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token-bucket pacer that sits between RtpStreamer and the real send engine.
+ * Packets are copied into a preallocated ring on the FrameSender thread and released by a dedicated thread
+ * at the configured rate, so a large IDR frame is spread out instead of hitting the Wi-Fi queue at once.
+ * The bucket holds at most burstBytes, which bounds how much can still go out back to back.
+ */
+public class RtpPacer implements RtpSendEngine {
+    private static final String TAG = "RtpPacer";
+    private static final int SLOT_COUNT = 1024; // Power of two, about 1.4 MB of queued packets at 1400 bytes each
+    private static final int SLOT_SIZE = 2048;
+    private static final long IDLE_PARK_NANOS = 5_000_000L;
+
+    private final RtpSendEngine downstream;
+    private final long burstBytes;
+    private volatile long bytesPerSecond;
+
+    // Single-producer / single-consumer ring, producers are serialized by send()
+    private final byte[][] slots = new byte[SLOT_COUNT][SLOT_SIZE];
+    private final int[] headerLengths = new int[SLOT_COUNT];
+    private final int[] packetLengths = new int[SLOT_COUNT];
+    private final long[] enqueueTimesNs = new long[SLOT_COUNT];
+    private final ByteBuffer[] headerViews = new ByteBuffer[SLOT_COUNT];
+    private final ByteBuffer[] payloadViews = new ByteBuffer[SLOT_COUNT];
+    private volatile long head = 0; // Next slot to send, advanced by the pacer thread
+    private volatile long tail = 0; // Next slot to fill, advanced by send()
+    private volatile long enqueuedBytes = 0; // Written by send() only
+    private volatile long releasedBytes = 0; // Written by the pacer thread only
+
+    private final Thread pacerThread;
+    private volatile boolean running = true;
+
+    // Metrics
+    private volatile long lastQueueDelayUs = 0;
+    private volatile long maxQueueDelayUs = 0;
+    private volatile long overflowDrops = 0;
+    private volatile long sendErrors = 0;
+
+    public RtpPacer(RtpSendEngine downstream, int bitRate, int burstBytes) {
+        this.downstream = downstream;
+        this.burstBytes = burstBytes;
+        setBitRate(bitRate);
+
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            headerViews[i] = ByteBuffer.wrap(slots[i]);
+            payloadViews[i] = ByteBuffer.wrap(slots[i]);
+        }
+
+        pacerThread = new Thread(this::runPacer, "RtpPacer");
+        pacerThread.start();
+    }
+
+    public void setBitRate(int bitRate) {
+        bytesPerSecond = Math.max(1, bitRate / 8);
+    }
+
+    // Synchronized so retransmissions from the RTCP thread can share the ring; the pacer thread never takes the lock
+    @Override
+    public synchronized void send(ByteBuffer header, ByteBuffer payload) {
+        long currentTail = tail;
+        if (currentTail - head >= SLOT_COUNT) {
+            overflowDrops++;
+            return;
+        }
+
+        int index = (int) (currentTail & (SLOT_COUNT - 1));
+        byte[] slot = slots[index];
+        int headerLength = header.remaining();
+        int payloadLength = payload.remaining();
+        header.get(slot, 0, headerLength);
+        payload.get(slot, headerLength, payloadLength);
+        headerLengths[index] = headerLength;
+        packetLengths[index] = headerLength + payloadLength;
+        enqueueTimesNs[index] = System.nanoTime();
+        enqueuedBytes += headerLength + payloadLength;
+
+        tail = currentTail + 1; // Publish
+        LockSupport.unpark(pacerThread);
+    }
+
+    private void runPacer() {
+        long tokens = burstBytes;
+        long lastRefillNs = System.nanoTime();
+
+        while (running) {
+            long currentHead = head;
+            if (currentHead == tail) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+
+            long now = System.nanoTime();
+            long rate = bytesPerSecond;
+            // Anything longer than it takes to fill the bucket adds nothing, and would overflow after a long idle
+            long elapsedNs = Math.min(now - lastRefillNs, burstBytes * 1_000_000_000L / rate);
+            tokens = Math.min(burstBytes, tokens + elapsedNs * rate / 1_000_000_000L);
+            lastRefillNs = now;
+
+            int index = (int) (currentHead & (SLOT_COUNT - 1));
+            int length = packetLengths[index];
+            if (tokens < length) {
+                // Sleep until enough tokens have accumulated for this packet
+                LockSupport.parkNanos(this, (length - tokens) * 1_000_000_000L / rate);
+                continue;
+            }
+            tokens -= length;
+
+            long queueDelayUs = (now - enqueueTimesNs[index]) / 1000;
+            lastQueueDelayUs = queueDelayUs;
+            if (queueDelayUs > maxQueueDelayUs) {
+                maxQueueDelayUs = queueDelayUs;
+            }
+
+            ByteBuffer header = headerViews[index];
+            ByteBuffer payload = payloadViews[index];
+            header.limit(headerLengths[index]);
+            header.position(0);
+            payload.limit(length);
+            payload.position(headerLengths[index]);
+            try {
+                downstream.send(header, payload);
+            } catch (IOException e) {
+                sendErrors++;
+                if (running) {
+                    Log.e(TAG, "Failed to send paced RTP packet", e);
+                }
+            }
+
+            releasedBytes += length;
+            head = currentHead + 1; // Free the slot
+        }
+    }
+
+    public int getQueueDepth() {
+        return (int) (tail - head);
+    }
+
+    /** How long the packets queued right now will take to go out at the current rate; 0 when the queue is empty. */
+    public long getBacklogUs() {
+        long released = releasedBytes; // Read first, so it can't be ahead of enqueuedBytes
+        return Math.max(0, enqueuedBytes - released) * 1_000_000L / bytesPerSecond;
+    }
+
+    /** How long the last packet sent waited in the queue. */
+    public long getLastQueueDelayUs() {
+        return lastQueueDelayUs;
+    }
+
+    public long getMaxQueueDelayUs() {
+        return maxQueueDelayUs;
+    }
+
+    public long getOverflowDrops() {
+        return overflowDrops;
+    }
+
+    public long getSendErrors() {
+        return sendErrors;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(pacerThread);
+        try {
+            pacerThread.join(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        downstream.close();
+    }
+}
@@ -0,0 +1,135 @@
+package com.avnishkirnalli.tvcompanion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Keeps the most recently sent media packets so they can be retransmitted when the controller NACKs them.
+ * Packets are copied into a preallocated ring indexed by sequence number on their way to the wire, and
+ * retransmissions go out as RTX packets (RFC 4588) on their own SSRC and payload type, so the original
+ * stream's sequence numbers and statistics are left untouched.
+ */
+public class RtpPacketHistory implements RtpSendEngine {
+    public static final int RTX_PAYLOAD_TYPE = 97;
+
+    private static final int RTP_HEADER_LENGTH = 12;
+    private static final int SLOT_COUNT = 1024; // Power of two, about one second of 4K video
+    private static final int SLOT_SIZE = 2048;
+
+    private final RtpSendEngine downstream;
+    private final RtpSendEngine rtxEngine;
+
+    private final byte[][] slots = new byte[SLOT_COUNT][SLOT_SIZE];
+    private final int[] slotLengths = new int[SLOT_COUNT];
+    private final int[] slotSeqs = new int[SLOT_COUNT];
+
+    // RTX stream identity
+    private final long rtxSsrc;
+    private int rtxSequenceNumber = 0;
+    private final ByteBuffer rtxHeader = ByteBuffer.allocate(SLOT_SIZE);
+    private final ByteBuffer[] payloadViews = new ByteBuffer[SLOT_COUNT];
+
+    // Stats
+    private volatile long retransmittedPackets = 0;
+    private volatile long missedRetransmissions = 0; // NACKed packets no longer in the history
+
+    /**
+     * @param downstream where media packets continue after being recorded
+     * @param rtxEngine  where retransmissions are sent; must accept calls from the RTCP thread
+     */
+    public RtpPacketHistory(RtpSendEngine downstream, RtpSendEngine rtxEngine) {
+        this.downstream = downstream;
+        this.rtxEngine = rtxEngine;
+        this.rtxSsrc = new Random().nextLong() & 0xFFFFFFFFL;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            slotSeqs[i] = -1;
+            payloadViews[i] = ByteBuffer.wrap(slots[i]);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer header, ByteBuffer payload) throws IOException {
+        int headerStart = header.position();
+        int headerLength = header.remaining();
+        int payloadStart = payload.position();
+        int payloadLength = payload.remaining();
+        int seq = header.getShort(headerStart + 2) & 0xFFFF;
+        int index = seq & (SLOT_COUNT - 1);
+
+        synchronized (this) {
+            byte[] slot = slots[index];
+            header.get(slot, 0, headerLength);
+            payload.get(slot, headerLength, payloadLength);
+            slotLengths[index] = headerLength + payloadLength;
+            slotSeqs[index] = seq;
+        }
+
+        header.position(headerStart);
+        payload.position(payloadStart);
+        downstream.send(header, payload);
+    }
+
+    /** Retransmits the packets of a Generic NACK entry: pid and those flagged in the blp bitmask. */
+    public void onNack(int pid, int blp) {
+        resend(pid);
+        for (int i = 0; i < 16; i++) {
+            if ((blp & (1 << i)) != 0) {
+                resend((pid + i + 1) & 0xFFFF);
+            }
+        }
+    }
+
+    private synchronized void resend(int seq) {
+        int index = seq & (SLOT_COUNT - 1);
+        if (slotSeqs[index] != seq) {
+            missedRetransmissions++;
+            return;
+        }
+
+        byte[] slot = slots[index];
+        int headerLength = rtpHeaderLength(slot);
+
+        // Original header with the RTX payload type, sequence number and SSRC, followed by the OSN
+        rtxHeader.clear();
+        rtxHeader.put(slot, 0, headerLength);
+        rtxHeader.put(1, (byte) ((slot[1] & 0x80) | RTX_PAYLOAD_TYPE));
+        rtxHeader.putShort(2, (short) rtxSequenceNumber);
+        rtxHeader.putInt(8, (int) rtxSsrc);
+        rtxHeader.putShort((short) seq);
+        rtxHeader.flip();
+
+        ByteBuffer payload = payloadViews[index];
+        payload.limit(slotLengths[index]);
+        payload.position(headerLength);
+        try {
+            rtxEngine.send(rtxHeader, payload);
+            rtxSequenceNumber = (rtxSequenceNumber + 1) & 0xFFFF;
+            retransmittedPackets++;
+        } catch (IOException e) {
+            missedRetransmissions++;
+        }
+    }
+
+    private static int rtpHeaderLength(byte[] packet) {
+        int length = RTP_HEADER_LENGTH + (packet[0] & 0x0F) * 4; // CSRCs
+        if ((packet[0] & 0x10) != 0) {
+            int extensionWords = ((packet[length + 2] & 0xFF) << 8) | (packet[length + 3] & 0xFF);
+            length += 4 + extensionWords * 4;
+        }
+        return length;
+    }
+
+    public long getRetransmittedPackets() {
+        return retransmittedPackets;
+    }
+
+    public long getMissedRetransmissions() {
+        return missedRetransmissions;
+    }
+
+    @Override
+    public void close() throws IOException {
+        downstream.close();
+    }
+}
@@ -0,0 +1,15 @@
+package com.avnishkirnalli.tvcompanion;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport used by RtpStreamer to put finished RTP packets on the wire.
+ * Each call sends one datagram made of the header bytes followed by the payload bytes,
+ * both taken from position to limit. Implementations must not keep either buffer after returning.
+ * Transports (socket engines and the pacer) may be called from both the FrameSender thread and the RTCP thread.
+ */
+public interface RtpSendEngine extends Closeable {
+    void send(ByteBuffer header, ByteBuffer payload) throws IOException;
+}
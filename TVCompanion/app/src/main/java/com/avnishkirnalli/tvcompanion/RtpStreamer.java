@@ -3,25 +3,58 @@ package com.avnishkirnalli.tvcompanion;
 import android.media.MediaCodec;
 import android.util.Log;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.Random;
 
 public class RtpStreamer {
     private static final String TAG = "RtpStreamer";
-    private static final int MTU = 1400; // Maximum Transmission Unit
+    // Per-buffer and per-packet logging; compiled out unless flipped while debugging
+    private static final boolean VERBOSE_LOGGING = false;
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1400; // RTP packet size until the path MTU is known
+    private static final int MAX_PACKET_SIZE_LIMIT = 1500;
     private static final int RTP_HEADER_LENGTH = 12;
-    private static final int MAX_PAYLOAD_SIZE = MTU - RTP_HEADER_LENGTH;
-
-    private final String destIp;
-    private final int destPort;
-    private final DatagramSocket udpSocket;
+    private static final int FU_A_HEADER_LENGTH = 2;
+    private static final int STAP_A_HEADER_LENGTH = 1;
+    private static final int STAP_A_NAL_SIZE_LENGTH = 2;
+
+    // RFC 8285 one-byte header extension on the last packet of each frame, carrying the frame's timing so the
+    // controller can tell how long each stage takes. There is no SDP, so the element IDs are fixed on both ends.
+    private static final int EXTENSION_PROFILE_ONE_BYTE = 0xBEDE;
+    private static final int CAPTURE_TIME_EXTENSION_ID = 1; // 8 bytes: capture time in microseconds, System.nanoTime() clock
+    private static final int ENCODE_TIME_EXTENSION_ID = 2; // 4 bytes: microseconds from capture to encoder output
+    private static final int EXTENSION_LENGTH = 20; // Profile, length and both elements, padded to whole words
+
+    private final RtpSendEngine sendEngine;
+    private final StreamMetrics metrics;
+
+    // Largest RTP payload; follows the path MTU, but only changes between frames
+    private volatile int pendingMaxPayloadSize = DEFAULT_MAX_PACKET_SIZE - RTP_HEADER_LENGTH;
+    private int maxPayloadSize = pendingMaxPayloadSize;
+    private long frameSendTimeNs = 0; // Time spent in sendEngine.send() for the current frame
+
+    // Timing of the current frame for the header extension
+    private boolean captureTimeExtensionEnabled = false;
+    private long captureTimeUs = 0;
+    private long encodeTimeUs = 0;
+    private int extensionLength = 0; // Header extension bytes of the packet being sent
+
+    // RTP header (plus FU-A indicator/header) is built here and sent together with a slice of the NAL unit.
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(RTP_HEADER_LENGTH + EXTENSION_LENGTH + FU_A_HEADER_LENGTH);
+
+    // NAL units of the current access unit, found before any packet is sent so the whole frame goes out in one burst.
+    private final NalUnitIndex nalUnits = new NalUnitIndex();
+
+    // Pending STAP-A packet (RFC 6184 5.7.1). Consecutive NAL units of an access unit that fit in one packet
+    // are collected here, each prefixed with its 16-bit size, and sent together.
+    private boolean aggregationEnabled = false;
+    private final ByteBuffer stapBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE_LIMIT - RTP_HEADER_LENGTH);
+    private int stapNalCount = 0;
+    private int stapNri = 0;
 
     // H.264 specific
+    private static final int NAL_UNIT_TYPE_SPS = 7;
+    private static final int NAL_UNIT_TYPE_PPS = 8;
+    private static final int NAL_UNIT_TYPE_STAP_A = 24;
     private static final int NAL_UNIT_TYPE_FU_A = 28;
     private static final byte NAL_UNIT_HEADER_S_BIT = (byte) 0x80; // Start bit
     private static final byte NAL_UNIT_HEADER_E_BIT = (byte) 0x40; // End bit
@@ -29,30 +62,76 @@ public class RtpStreamer {
     // RTP state
     private int sequenceNumber = 0;
     private long timestamp = 0;
+    private final long timestampOffset; // Random initial RTP timestamp (RFC 3550 5.1)
     private final long ssrc;
     private final int payloadType = 96; // Dynamic payload type for H.264
 
     // Frame properties
-    private final int clockRate = 90000; // Standard for video
-    private final int frameRate;
+    private static final int CLOCK_RATE = 90000; // Standard for video
+
+    // Sender statistics for RTCP Sender Reports. Written only on the FrameSender thread, read by the RTCP thread.
+    private volatile long packetCount = 0;
+    private volatile long octetCount = 0;
+
+    // Parameter sets are copied once per codec config buffer, not per frame.
+    private ByteBuffer sps = null;
+    private ByteBuffer pps = null;
+
+    public RtpStreamer(RtpSendEngine sendEngine, StreamMetrics metrics) {
+        this.sendEngine = sendEngine;
+        this.metrics = metrics;
+        Random random = new Random();
+        this.ssrc = random.nextLong() & 0xFFFFFFFFL; // Use long and mask to get a positive 32-bit int
+        this.timestampOffset = random.nextLong() & 0xFFFFFFFFL;
+        resetAggregate();
+    }
+
+    /** Sets the largest RTP packet (header included) to send, effective from the next frame. */
+    public void setMaxPacketSize(int maxPacketSize) {
+        pendingMaxPayloadSize = Math.min(maxPacketSize, MAX_PACKET_SIZE_LIMIT) - RTP_HEADER_LENGTH;
+    }
 
-    private byte[] sps = null;
-    private byte[] pps = null;
+    public int getMaxPacketSize() {
+        return pendingMaxPayloadSize + RTP_HEADER_LENGTH;
+    }
+
+    public void setAggregationEnabled(boolean aggregationEnabled) {
+        this.aggregationEnabled = aggregationEnabled;
+    }
+
+    /**
+     * Adds the capture time header extension to the last packet of every frame. Room for it is kept in every
+     * packet, since where a frame's last packet falls is only known once it is being sent.
+     */
+    public void setCaptureTimeExtensionEnabled(boolean captureTimeExtensionEnabled) {
+        this.captureTimeExtensionEnabled = captureTimeExtensionEnabled;
+    }
+
+    public long getSsrc() {
+        return ssrc;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
 
-    public RtpStreamer(String destIp, int destPort, int frameRate, DatagramSocket socket) {
-        this.destIp = destIp;
-        this.destPort = destPort;
-        this.frameRate = frameRate;
-        this.udpSocket = socket;
-        this.ssrc = new Random().nextLong() & 0xFFFFFFFFL; // Use long and mask to get a positive 32-bit int
+    public long getOctetCount() {
+        return octetCount;
     }
 
-    public void processBuffer(ByteBuffer data, MediaCodec.BufferInfo bufferInfo) throws IOException {
-        Log.d(TAG, "Processing MediaCodec buffer. Size: " + bufferInfo.size + ", Flags: " + bufferInfo.flags);
+    /**
+     * Converts a time on the codec's presentation clock to an RTP timestamp.
+     * Surface input timestamps come from System.nanoTime(), so this also maps "now" for Sender Reports.
+     */
+    public long toRtpTimestamp(long presentationTimeUs) {
+        return (timestampOffset + presentationTimeUs * CLOCK_RATE / 1_000_000L) & 0xFFFFFFFFL;
+    }
 
-        // Increment timestamp for the new frame
-        // This is the CRITICAL FIX: Timestamp is incremented once per buffer from MediaCodec
-        timestamp += (long) clockRate / frameRate;
+    /** Packetizes and sends an encoded buffer; encodedTimeUs is when the encoder output it, on the capture clock. */
+    public void processBuffer(ByteBuffer data, MediaCodec.BufferInfo bufferInfo, long encodedTimeUs) throws IOException {
+        if (VERBOSE_LOGGING) {
+            Log.d(TAG, "Processing MediaCodec buffer. Size: " + bufferInfo.size + ", Flags: " + bufferInfo.flags);
+        }
 
         // Check for codec config buffer (SPS/PPS)
         if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
@@ -60,159 +139,242 @@ public class RtpStreamer {
             return; // Don't send config buffer as a regular frame
         }
 
+        // The RTP timestamp follows the capture time of the frame, so dropped or repeated frames don't cause drift
+        timestamp = toRtpTimestamp(bufferInfo.presentationTimeUs);
+        captureTimeUs = bufferInfo.presentationTimeUs;
+        encodeTimeUs = Math.max(0, encodedTimeUs - bufferInfo.presentationTimeUs);
+
+        int payloadSize = pendingMaxPayloadSize - (captureTimeExtensionEnabled ? EXTENSION_LENGTH : 0);
+        if (maxPayloadSize != payloadSize) {
+            maxPayloadSize = payloadSize;
+            resetAggregate();
+        }
+
         // Find and send all NAL units in the buffer
+        long startNs = System.nanoTime();
+        frameSendTimeNs = 0;
         findAndSendNalUnits(data, bufferInfo);
+        long totalNs = System.nanoTime() - startNs;
+        metrics.onFrameSent(bufferInfo.size, (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0,
+                (totalNs - frameSendTimeNs) / 1000, frameSendTimeNs / 1000);
     }
 
     private void findAndSendNalUnits(ByteBuffer data, MediaCodec.BufferInfo bufferInfo) throws IOException {
         // H.264 NAL units are separated by start codes: 00 00 01 or 00 00 00 01
-        byte[] buffer = new byte[bufferInfo.size];
-        data.get(buffer);
-
-        int nalUnitStartIndex = -1;
-
-        for (int i = 0; i + 3 < buffer.length; i++) {
-            // Find start code
-            if (buffer[i] == 0x00 && buffer[i+1] == 0x00 && (buffer[i+2] == 0x01 || (buffer[i+2] == 0x00 && buffer[i+3] == 0x01))) {
-                if (nalUnitStartIndex != -1) {
-                    // Found a complete NAL unit, send it
-                    int nalUnitEndIndex = i;
-                    int nalUnitLength = nalUnitEndIndex - nalUnitStartIndex;
-                    byte[] nalUnit = Arrays.copyOfRange(buffer, nalUnitStartIndex, nalUnitEndIndex);
-                    sendNalUnit(nalUnit, false); // Not the last NAL of the frame yet
-                }
-                // Found a new start code, mark its beginning
-                nalUnitStartIndex = i + (buffer[i+2] == 0x01 ? 3 : 4);
-                i += (buffer[i+2] == 0x01 ? 2 : 3); // Skip past the start code
+        // NAL units are sent straight out of the codec buffer by offset, without copying the frame.
+        int nalCount = nalUnits.scan(data, bufferInfo.offset, bufferInfo.offset + bufferInfo.size);
+
+        // Send the whole access unit in one burst.
+        // The marker bit should be set on the last packet of the last NAL unit of the access unit (frame).
+        int limit = data.limit();
+        try {
+            for (int i = 0; i < nalCount; i++) {
+                sendNalUnit(data, nalUnits.getOffset(i), nalUnits.getLength(i), i == nalCount - 1);
             }
-        }
-
-        // Send the last NAL unit in the buffer
-        if (nalUnitStartIndex != -1) {
-            int nalUnitLength = buffer.length - nalUnitStartIndex;
-            byte[] nalUnit = Arrays.copyOfRange(buffer, nalUnitStartIndex, buffer.length);
-
-            // The marker bit should be set on the last packet of the last NAL unit of the access unit (frame).
-            boolean isLastNalOfFrame = true;
-            sendNalUnit(nalUnit, isLastNalOfFrame);
-        } else {
-            // If no start codes found, assume the whole buffer is one NAL unit
-            sendNalUnit(buffer, true);
+        } catch (IOException e) {
+            // The rest of the frame is abandoned; what was aggregated must not go out with the next frame's timestamp
+            resetAggregate();
+            throw e;
+        } finally {
+            data.limit(limit);
         }
     }
 
-    private void sendNalUnit(byte[] nalUnit, boolean isLastNalOfFrame) throws IOException {
-        int nalUnitType = nalUnit[0] & 0x1F;
+    private void sendNalUnit(ByteBuffer data, int offset, int length, boolean isLastNalOfFrame) throws IOException {
+        int nalUnitType = data.get(offset) & 0x1F;
 
         // Handle SPS/PPS sending before keyframes (IDR frames)
         if (nalUnitType == 5) { // IDR Frame (Keyframe)
             if (sps != null && pps != null) {
-                Log.d(TAG, "Sending SPS and PPS before keyframe");
-                sendSingleNalUnit(sps, false);
-                sendSingleNalUnit(pps, false);
+                if (VERBOSE_LOGGING) {
+                    Log.d(TAG, "Sending SPS and PPS before keyframe");
+                }
+                sendNalUnit(sps, 0, sps.capacity(), false);
+                sendNalUnit(pps, 0, pps.capacity(), false);
+            }
+        }
+
+        if (aggregationEnabled && STAP_A_HEADER_LENGTH + STAP_A_NAL_SIZE_LENGTH + length <= maxPayloadSize) {
+            if (stapBuffer.remaining() < STAP_A_NAL_SIZE_LENGTH + length) {
+                flushAggregate(false);
+            }
+            appendToAggregate(data, offset, length);
+            if (isLastNalOfFrame) {
+                flushAggregate(true);
             }
+            return;
         }
 
-        if (nalUnit.length <= MAX_PAYLOAD_SIZE) {
-            sendSingleNalUnit(nalUnit, isLastNalOfFrame);
+        // Anything already aggregated has to go out before this NAL unit to keep decoding order
+        flushAggregate(false);
+
+        if (length <= maxPayloadSize) {
+            sendSingleNalUnit(data, offset, length, isLastNalOfFrame);
         } else {
-            sendFragmentedNalUnit(nalUnit, isLastNalOfFrame);
+            sendFragmentedNalUnit(data, offset, length, isLastNalOfFrame);
         }
     }
 
-    private void sendSingleNalUnit(byte[] nalUnit, boolean isLastPacket) throws IOException {
-        sendRtpPacket(nalUnit, isLastPacket);
+    private void appendToAggregate(ByteBuffer data, int offset, int length) {
+        stapNri = Math.max(stapNri, data.get(offset) & 0x60);
+        stapBuffer.putShort((short) length);
+        data.limit(offset + length);
+        data.position(offset);
+        stapBuffer.put(data);
+        stapNalCount++;
     }
 
-    private void sendFragmentedNalUnit(byte[] nalUnit, boolean isLastNalOfFrame) throws IOException {
-        int maxPayloadSize = MAX_PAYLOAD_SIZE - 2; // Reserve 2 bytes for FU-A headers
+    private void flushAggregate(boolean isLastPacket) throws IOException {
+        if (stapNalCount == 1) {
+            // A lone NAL unit goes out as a plain single NAL unit packet
+            int nalOffset = STAP_A_HEADER_LENGTH + STAP_A_NAL_SIZE_LENGTH;
+            sendSingleNalUnit(stapBuffer, nalOffset, stapBuffer.position() - nalOffset, isLastPacket);
+        } else if (stapNalCount > 1) {
+            stapBuffer.put(0, (byte) (stapNri | NAL_UNIT_TYPE_STAP_A)); // F=0, NRI = highest of the aggregated units
+            sendSingleNalUnit(stapBuffer, 0, stapBuffer.position(), isLastPacket);
+        }
+        resetAggregate();
+    }
+
+    private void resetAggregate() {
+        stapBuffer.clear();
+        stapBuffer.limit(maxPayloadSize);
+        stapBuffer.position(STAP_A_HEADER_LENGTH);
+        stapNalCount = 0;
+        stapNri = 0;
+    }
 
-        byte originalNalHeader = nalUnit[0];
+    private void sendSingleNalUnit(ByteBuffer data, int offset, int length, boolean isLastPacket) throws IOException {
+        writeRtpHeader(isLastPacket);
+        headerBuffer.flip();
+
+        sendRtpPacket(data, offset, length, isLastPacket);
+    }
+
+    private void sendFragmentedNalUnit(ByteBuffer data, int offset, int length, boolean isLastNalOfFrame) throws IOException {
+        int maxFragmentSize = maxPayloadSize - FU_A_HEADER_LENGTH; // Reserve 2 bytes for FU-A headers
+
+        byte originalNalHeader = data.get(offset);
         int nri = originalNalHeader & 0x60; // Bits 5-6
 
-        int offset = 1; // Skip original NAL unit header
-        while (offset < nalUnit.length) {
-            int chunkSize = Math.min(maxPayloadSize, nalUnit.length - offset);
-            boolean isLastFragment = (offset + chunkSize) >= nalUnit.length;
+        int end = offset + length;
+        int fragmentOffset = offset + 1; // Skip original NAL unit header
+        while (fragmentOffset < end) {
+            int chunkSize = Math.min(maxFragmentSize, end - fragmentOffset);
+            boolean isLastFragment = (fragmentOffset + chunkSize) >= end;
+            boolean isMarkerSet = isLastNalOfFrame && isLastFragment;
 
-            byte[] payload = new byte[chunkSize + 2];
+            writeRtpHeader(isMarkerSet);
 
             // FU Indicator (1 byte)
-            payload[0] = (byte) (nri | NAL_UNIT_TYPE_FU_A);
+            headerBuffer.put((byte) (nri | NAL_UNIT_TYPE_FU_A));
 
             // FU Header (1 byte)
             byte fuHeader = (byte) (originalNalHeader & 0x1F); // NAL type
-            if (offset == 1) { // First fragment
+            if (fragmentOffset == offset + 1) { // First fragment
                 fuHeader |= NAL_UNIT_HEADER_S_BIT;
             }
             if (isLastFragment) {
                 fuHeader |= NAL_UNIT_HEADER_E_BIT;
             }
-            payload[1] = fuHeader;
-
-            System.arraycopy(nalUnit, offset, payload, 2, chunkSize);
+            headerBuffer.put(fuHeader);
+            headerBuffer.flip();
 
-            boolean isMarkerSet = isLastNalOfFrame && isLastFragment;
-            sendRtpPacket(payload, isMarkerSet);
+            sendRtpPacket(data, fragmentOffset, chunkSize, isMarkerSet);
 
-            offset += chunkSize;
+            fragmentOffset += chunkSize;
         }
     }
 
-    private void sendRtpPacket(byte[] payload, boolean marker) throws IOException {
-        byte[] packet = new byte[RTP_HEADER_LENGTH + payload.length];
-        InetAddress destAddr = InetAddress.getByName(destIp);
-
+    private void writeRtpHeader(boolean marker) {
+        headerBuffer.clear();
+        boolean extension = marker && captureTimeExtensionEnabled;
         // --- Assemble RTP Header ---
-        // Version (V=2), Padding (P=0), Extension (X=0), CSRC count (CC=0)
-        packet[0] = (byte) 0x80;
+        // Version (V=2), Padding (P=0), Extension (X), CSRC count (CC=0)
+        headerBuffer.put((byte) (extension ? 0x90 : 0x80));
         // Marker (M) and Payload Type (PT)
-        packet[1] = (byte) ((marker ? 0x80 : 0x00) | (payloadType & 0x7F));
+        headerBuffer.put((byte) ((marker ? 0x80 : 0x00) | (payloadType & 0x7F)));
         // Sequence Number
-        packet[2] = (byte) (sequenceNumber >> 8);
-        packet[3] = (byte) sequenceNumber;
+        headerBuffer.putShort((short) sequenceNumber);
         // Timestamp
-        packet[4] = (byte) (timestamp >> 24);
-        packet[5] = (byte) (timestamp >> 16);
-        packet[6] = (byte) (timestamp >> 8);
-        packet[7] = (byte) timestamp;
+        headerBuffer.putInt((int) timestamp);
         // SSRC
-        packet[8] = (byte) (ssrc >> 24);
-        packet[9] = (byte) (ssrc >> 16);
-        packet[10] = (byte) (ssrc >> 8);
-        packet[11] = (byte) ssrc;
+        headerBuffer.putInt((int) ssrc);
 
-        // Copy payload
-        System.arraycopy(payload, 0, packet, RTP_HEADER_LENGTH, payload.length);
+        extensionLength = 0;
+        if (extension) {
+            writeCaptureTimeExtension();
+        }
+    }
+
+    private void writeCaptureTimeExtension() {
+        int start = headerBuffer.position();
+        headerBuffer.putShort((short) EXTENSION_PROFILE_ONE_BYTE);
+        headerBuffer.putShort((short) ((EXTENSION_LENGTH - 4) / 4)); // In 32-bit words
+        // One-byte element header: ID in the high nibble, length - 1 in the low one
+        headerBuffer.put((byte) ((CAPTURE_TIME_EXTENSION_ID << 4) | (8 - 1)));
+        headerBuffer.putLong(captureTimeUs);
+        headerBuffer.put((byte) ((ENCODE_TIME_EXTENSION_ID << 4) | (4 - 1)));
+        headerBuffer.putInt((int) Math.min(encodeTimeUs, 0xFFFFFFFFL));
+        while (headerBuffer.position() - start < EXTENSION_LENGTH) {
+            headerBuffer.put((byte) 0); // Padding
+        }
+        extensionLength = EXTENSION_LENGTH;
+    }
+
+    private void sendRtpPacket(ByteBuffer data, int offset, int length, boolean marker) throws IOException {
+        // Limit first, then position, so the slice is valid whichever way it moves.
+        data.limit(offset + length);
+        data.position(offset);
+
+        int packetLength = headerBuffer.limit() + length;
 
         // Send packet
-        udpSocket.send(new DatagramPacket(packet, packet.length, destAddr, destPort));
-        Log.d(TAG, "Sent RTP packet: Seq=" + sequenceNumber + ", TS=" + timestamp + ", Size=" + packet.length + ", Marker=" + marker);
+        long sendStartNs = System.nanoTime();
+        try {
+            sendEngine.send(headerBuffer, data);
+        } catch (IOException e) {
+            metrics.onSendError();
+            throw e;
+        } finally {
+            frameSendTimeNs += System.nanoTime() - sendStartNs;
+        }
+        if (VERBOSE_LOGGING) {
+            Log.d(TAG, "Sent RTP packet: Seq=" + sequenceNumber + ", TS=" + timestamp + ", Size=" + packetLength + ", Marker=" + marker);
+        }
 
         // Increment sequence number
         sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+        packetCount++;
+        octetCount += packetLength - RTP_HEADER_LENGTH - extensionLength;
+        metrics.onPacketSent(packetLength);
     }
 
     private void extractSpsPps(ByteBuffer configBuffer, MediaCodec.BufferInfo bufferInfo) {
-        // Typically SPS and PPS are sent together in the config buffer.
-        // They are separated by NAL start codes.
-        byte[] config = new byte[bufferInfo.size];
-        configBuffer.get(config);
-
-        int spsEnd = -1;
-        // Find the second start code to separate SPS and PPS
-        for (int i = 4; i + 3 < config.length; i++) {
-            if (config[i] == 0x00 && config[i+1] == 0x00 && config[i+2] == 0x00 && config[i+3] == 0x01) {
-                spsEnd = i;
-                break;
+        // Typically SPS and PPS are sent together in the config buffer, each behind its own start code.
+        int nalCount = nalUnits.scan(configBuffer, bufferInfo.offset, bufferInfo.offset + bufferInfo.size);
+        for (int i = 0; i < nalCount; i++) {
+            int offset = nalUnits.getOffset(i);
+            int nalUnitType = configBuffer.get(offset) & 0x1F;
+            if (nalUnitType == NAL_UNIT_TYPE_SPS) {
+                sps = copyNalUnit(configBuffer, offset, nalUnits.getLength(i));
+            } else if (nalUnitType == NAL_UNIT_TYPE_PPS) {
+                pps = copyNalUnit(configBuffer, offset, nalUnits.getLength(i));
             }
         }
 
-        if (spsEnd != -1) {
-            // Assumes start code is 4 bytes (00 00 00 01)
-            sps = Arrays.copyOfRange(config, 4, spsEnd);
-            pps = Arrays.copyOfRange(config, spsEnd + 4, config.length);
-            Log.d(TAG, "Extracted SPS (" + sps.length + " bytes) and PPS (" + pps.length + " bytes)");
+        if (sps != null && pps != null) {
+            Log.d(TAG, "Extracted SPS (" + sps.capacity() + " bytes) and PPS (" + pps.capacity() + " bytes)");
         }
     }
-}
\ No newline at end of file
+
+    // The codec buffer is reused, so parameter sets are kept in their own copy
+    private static ByteBuffer copyNalUnit(ByteBuffer data, int offset, int length) {
+        ByteBuffer source = data.duplicate();
+        source.limit(offset + length);
+        source.position(offset);
+        byte[] nal = new byte[length];
+        source.get(nal);
+        return ByteBuffer.wrap(nal);
+    }
+}
@@ -33,7 +33,6 @@ import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.nio.ByteBuffer;
 
 public class ScreenStreamingService extends Service {
@@ -44,16 +43,63 @@ public class ScreenStreamingService extends Service {
 
     private static final String VIDEO_MIME_TYPE = "video/avc";
     private static final int FRAME_RATE = 30;
-    private static final int I_FRAME_INTERVAL = 2; // seconds
-    private static final int BIT_RATE = 800 * 1024;
+    private static final int I_FRAME_INTERVAL = 10; // seconds; losses are repaired sooner by keyframes on request
+    // A storm of PLI/FIR feedback must not turn the stream into all keyframes
+    private static final long MIN_KEY_FRAME_REQUEST_INTERVAL_MS = 500;
+    // Encoded frames waiting for the sender thread (power of two); about half a second at FRAME_RATE
+    private static final int FRAME_QUEUE_SLOTS = 16;
+    // How far the send path may fall behind capture before frames are dropped, so latency stays bounded on a stall
+    private static final long DROP_NON_REFERENCE_LAG_MS = 150;
+    private static final long SKIP_TO_KEY_FRAME_LAG_MS = 400;
+    private static final int BIT_RATE = 800 * 1024; // Starting bitrate, adapted by BitrateController from receiver feedback
+    private static final int MIN_BIT_RATE = 300 * 1024;
+    private static final float MAX_BITS_PER_PIXEL = 0.1f; // Upper bound per frame pixel, so it scales with the resolution
     private static final int DEST_PORT = 5005;
+    // Connected DatagramChannel with gathering writes; set to false to fall back to a plain DatagramSocket.
+    private static final boolean USE_DATAGRAM_CHANNEL = true;
+    // Pack SPS/PPS and other small NAL units of a frame into STAP-A packets
+    private static final boolean USE_STAP_A = true;
+    // Stamp each frame with its capture and encode times (RTP header extension) for the controller's latency metrics
+    private static final boolean USE_CAPTURE_TIME_EXTENSION = true;
+    // Spread packets out at PACING_FACTOR x BIT_RATE so IDR frames don't burst onto Wi-Fi
+    private static final boolean USE_PACER = true;
+    private static final float PACING_FACTOR = 2.5f;
+    private static final int PACER_BURST_BYTES = 16 * 1024;
+    // XOR parity packet after every FEC_GROUP_SIZE media packets, or sooner at the end of a frame once the group covers
+    // FecEncoder.MAX_GROUP_SPAN_MS of video (1 / FEC_GROUP_SIZE overhead, more when frames are few packets)
+    private static final boolean USE_FEC = true;
+    private static final int FEC_GROUP_SIZE = 10; // Starting point, adapted to the reported loss
+    private static final int MIN_FEC_GROUP_SIZE = 4;
+    // Keep recently sent packets and retransmit them as RTX when the controller NACKs them
+    private static final boolean USE_RTX = true;
+    private static final int RTCP_PORT_OFFSET = 1; // RTCP on the next port up (RFC 3550 11)
+    private static final long RTCP_INTERVAL_MS = 1000;
+    // Probe the path MTU at session start and re-check it this often, so RTP packets are as large as the path allows
+    private static final boolean USE_MTU_PROBING = true;
+    private static final long MTU_REVALIDATE_INTERVAL_MS = 30_000;
+    // FEC packets are 14 bytes larger than the largest packet they protect (10-byte FEC header plus 4-byte level 0
+    // header), RTX packets 2 (the original sequence number)
+    private static final int MTU_PROTECTION_HEADROOM = 16;
 
     private MediaProjection mediaProjection;
     private VirtualDisplay virtualDisplay;
     private MediaCodec videoEncoder;
     private HandlerThread encoderThread;
     private RtpStreamer rtpStreamer;
-    private DatagramSocket udpSocket;
+    private FrameSender frameSender;
+    private RtpSendEngine sendEngine;
+    private RtcpSession rtcpSession;
+    private PathMtuProber pathMtuProber;
+    private FecEncoder fecEncoder;
+    private RtpPacketHistory packetHistory;
+    private StreamMetrics metrics;
+    private RtpPacer pacer;
+    private BitrateController bitrateController;
+    private LinkQuality linkQuality;
+    private Handler encoderHandler;
+    private long lastKeyFrameRequestMs = 0;
+    private volatile long keyFrameRequests = 0;
+    private volatile long keyFrameRequestsThrottled = 0;
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -107,17 +153,156 @@ public class ScreenStreamingService extends Service {
     private void startStreaming(Intent permissionData, String clientIp) throws IOException {
         createMediaProjection(permissionData);
 
-        udpSocket = new DatagramSocket();
-        rtpStreamer = new RtpStreamer(clientIp, DEST_PORT, FRAME_RATE, udpSocket);
+        // Send pipeline: RtpStreamer -> packet history -> FEC -> pacer -> socket.
+        // Retransmissions skip FEC and go straight to the transport (pacer or socket).
+        RtpSendEngine transport;
+        if (USE_DATAGRAM_CHANNEL) {
+            transport = new DatagramChannelSendEngine(clientIp, DEST_PORT);
+        } else {
+            transport = new DatagramSocketSendEngine(clientIp, DEST_PORT);
+        }
+        if (USE_PACER) {
+            pacer = new RtpPacer(transport, (int) (BIT_RATE * PACING_FACTOR), PACER_BURST_BYTES);
+            transport = pacer;
+        }
+        sendEngine = transport;
+        if (USE_FEC) {
+            fecEncoder = new FecEncoder(sendEngine, FEC_GROUP_SIZE);
+            sendEngine = fecEncoder;
+        }
+        if (USE_RTX) {
+            packetHistory = new RtpPacketHistory(sendEngine, transport);
+            sendEngine = packetHistory;
+        }
+        metrics = new StreamMetrics();
+        linkQuality = new LinkQuality();
+        rtpStreamer = new RtpStreamer(sendEngine, metrics);
+        rtpStreamer.setAggregationEnabled(USE_STAP_A);
+        rtpStreamer.setCaptureTimeExtensionEnabled(USE_CAPTURE_TIME_EXTENSION);
+        frameSender = new FrameSender(rtpStreamer, FRAME_QUEUE_SLOTS, this::requestKeyFrame);
+        RtpPacer streamPacer = pacer;
+        frameSender.setLatencyLimits(DROP_NON_REFERENCE_LAG_MS * 1000, SKIP_TO_KEY_FRAME_LAG_MS * 1000,
+                streamPacer != null ? streamPacer::getBacklogUs : () -> 0);
+        rtcpSession = new RtcpSession(rtpStreamer, clientIp, DEST_PORT + RTCP_PORT_OFFSET, RTCP_INTERVAL_MS);
+        rtcpSession.setFeedbackListener(new RtcpSession.FeedbackListener() {
+            @Override
+            public void onNack(int pid, int blp) {
+                if (packetHistory != null) {
+                    packetHistory.onNack(pid, blp);
+                }
+            }
+
+            @Override
+            public void onReceiverReport(int fractionLost, long cumulativeLost, long extendedHighestSeq, long jitter) {
+                linkQuality.onReceiverReport(fractionLost, cumulativeLost, extendedHighestSeq, jitter);
+                if (bitrateController != null) {
+                    bitrateController.onReceiverReport(fractionLost, jitter);
+                }
+                if (fecEncoder != null) {
+                    fecEncoder.setGroupSize(linkQuality.getFecGroupSize(MIN_FEC_GROUP_SIZE, FecEncoder.MAX_GROUP_SIZE));
+                }
+            }
+
+            @Override
+            public void onRoundTripTime(long rttUs) {
+                linkQuality.onRoundTripTime(rttUs);
+            }
+
+            @Override
+            public void onDelayGradient(long delayGradientUs, long intervalMs) {
+                if (bitrateController != null) {
+                    bitrateController.onDelayGradient(delayGradientUs, intervalMs);
+                }
+            }
+
+            @Override
+            public void onKeyFrameRequest(boolean fullIntraRequest) {
+                requestKeyFrame();
+            }
+
+            @Override
+            public void onMtuProbeAck(int probeId, int size) {
+                if (pathMtuProber != null) {
+                    pathMtuProber.onProbeAck(probeId, size);
+                }
+            }
+        });
+
+        if (USE_MTU_PROBING) {
+            // Falling back to the default path MTU gives back exactly the default packet size
+            int headerOverhead = rtcpSession.getHeaderOverhead();
+            int defaultPathMtu = RtpStreamer.DEFAULT_MAX_PACKET_SIZE + headerOverhead + MTU_PROTECTION_HEADROOM;
+            pathMtuProber = new PathMtuProber(rtcpSession, defaultPathMtu, MTU_REVALIDATE_INTERVAL_MS,
+                    mtu -> rtpStreamer.setMaxPacketSize(mtu - headerOverhead - MTU_PROTECTION_HEADROOM));
+        }
 
         configureEncoder();
 
         createVirtualDisplay();
 
+        registerGauges();
+        StreamMetrics.setCurrent(metrics);
+
         videoEncoder.start();
+        rtcpSession.start();
+        if (pathMtuProber != null) {
+            pathMtuProber.start();
+        }
         Log.d(TAG, "MediaCodec started. Streaming to " + clientIp + ":" + DEST_PORT);
     }
 
+    private void registerGauges() {
+        metrics.addGauge("frameQueueDepth", frameSender::getDepth);
+        metrics.addGauge("frameQueueMaxDepth", frameSender::getMaxDepth);
+        metrics.addGauge("frameQueueDelayUs", frameSender::getLastQueueDelayUs);
+        metrics.addGauge("frameQueueDrops", frameSender::getDroppedFrames);
+        metrics.addGauge("sendLagUs", frameSender::getLastSendLagUs);
+        metrics.addGauge("nonReferenceFrameDrops", frameSender::getNonReferenceDrops);
+        metrics.addGauge("keyFrameSkipDrops", frameSender::getKeyFrameSkipDrops);
+        if (pacer != null) {
+            metrics.addGauge("pacerQueueDepth", pacer::getQueueDepth);
+            metrics.addGauge("pacerQueueDelayUs", pacer::getLastQueueDelayUs);
+            metrics.addGauge("pacerBacklogUs", pacer::getBacklogUs);
+            metrics.addGauge("pacerMaxQueueDelayUs", pacer::getMaxQueueDelayUs);
+            metrics.addGauge("pacerOverflowDrops", pacer::getOverflowDrops);
+        }
+        if (fecEncoder != null) {
+            metrics.addGauge("fecGroupSize", fecEncoder::getGroupSize);
+            metrics.addGauge("fecPackets", fecEncoder::getFecPackets);
+            metrics.addGauge("fecBytes", fecEncoder::getFecBytes);
+            metrics.addGauge("fecOverheadRatio", fecEncoder::getOverheadRatio);
+        }
+        if (packetHistory != null) {
+            metrics.addGauge("retransmittedPackets", packetHistory::getRetransmittedPackets);
+            metrics.addGauge("missedRetransmissions", packetHistory::getMissedRetransmissions);
+        }
+        metrics.addGauge("rtpPacketSize", rtpStreamer::getMaxPacketSize);
+        if (pathMtuProber != null) {
+            metrics.addGauge("pathMtu", pathMtuProber::getPathMtu);
+            metrics.addGauge("mtuProbeRounds", pathMtuProber::getRounds);
+            metrics.addGauge("mtuProbeFailedRounds", pathMtuProber::getFailedRounds);
+        }
+        metrics.addGauge("targetBitRate", bitrateController::getTargetBitRate);
+        metrics.addGauge("minBitRate", bitrateController::getMinBitRate);
+        metrics.addGauge("maxBitRate", bitrateController::getMaxBitRate);
+        metrics.addGauge("bitRateDecision", () -> bitrateController.getLastDecision().name());
+        metrics.addGauge("bitRateIncreases", bitrateController::getIncreases);
+        metrics.addGauge("bitRateDecreases", bitrateController::getDecreases);
+        metrics.addGauge("linkReports", linkQuality::getReports);
+        metrics.addGauge("linkReportAgeMs", linkQuality::getReportAgeMs);
+        metrics.addGauge("linkFractionLost", linkQuality::getFractionLost);
+        metrics.addGauge("linkSmoothedLoss", linkQuality::getSmoothedLoss);
+        metrics.addGauge("linkCumulativeLost", linkQuality::getCumulativeLost);
+        metrics.addGauge("linkPacketsExpected", linkQuality::getPacketsExpected);
+        metrics.addGauge("linkJitterUs", linkQuality::getJitterUs);
+        metrics.addGauge("linkMaxJitterUs", linkQuality::getMaxJitterUs);
+        metrics.addGauge("linkRttUs", linkQuality::getRttUs);
+        metrics.addGauge("linkSmoothedRttUs", linkQuality::getSmoothedRttUs);
+        metrics.addGauge("linkMinRttUs", linkQuality::getMinRttUs);
+        metrics.addGauge("keyFrameRequests", () -> keyFrameRequests);
+        metrics.addGauge("keyFrameRequestsThrottled", () -> keyFrameRequestsThrottled);
+    }
+
     private void configureEncoder() throws IOException {
         DisplayMetrics displayMetrics = getActualDisplayMetrics();
         int width = displayMetrics.widthPixels;
@@ -134,6 +319,10 @@ public class ScreenStreamingService extends Service {
         
         encoderThread = new HandlerThread("VideoEncoder");
         encoderThread.start();
+        encoderHandler = new Handler(encoderThread.getLooper());
+
+        int maxBitRate = (int) (width * height * FRAME_RATE * MAX_BITS_PER_PIXEL);
+        bitrateController = new BitrateController(BIT_RATE, MIN_BIT_RATE, maxBitRate, this::applyBitRate);
         
         videoEncoder.setCallback(new MediaCodec.Callback() {
             @Override
@@ -143,15 +332,12 @@ public class ScreenStreamingService extends Service {
 
             @Override
             public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-                try {
-                    ByteBuffer outputBuffer = codec.getOutputBuffer(index);
-                    if (outputBuffer != null && rtpStreamer != null) {
-                        rtpStreamer.processBuffer(outputBuffer, info);
-                    }
-                    codec.releaseOutputBuffer(index, false);
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to send RTP packet", e);
+                // Copy the frame out and give the buffer straight back; packetizing and sending happen on the sender thread
+                ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+                if (outputBuffer != null && frameSender != null) {
+                    frameSender.submit(outputBuffer, info);
                 }
+                codec.releaseOutputBuffer(index, false);
             }
 
             @Override
@@ -164,11 +350,49 @@ public class ScreenStreamingService extends Service {
             public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
                 Log.i(TAG, "MediaCodec output format changed: " + format);
             }
-        }, new Handler(encoderThread.getLooper()));
+        }, encoderHandler);
 
         videoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     }
 
+    // Called on the RTCP thread, and on the encoder thread when the frame queue overflows
+    private synchronized void requestKeyFrame() {
+        long now = System.nanoTime() / 1_000_000;
+        if (now - lastKeyFrameRequestMs < MIN_KEY_FRAME_REQUEST_INTERVAL_MS) {
+            keyFrameRequestsThrottled++;
+            return;
+        }
+        lastKeyFrameRequestMs = now;
+        keyFrameRequests++;
+
+        encoderHandler.post(() -> {
+            try {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                videoEncoder.setParameters(params);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Failed to request a keyframe", e);
+            }
+        });
+    }
+
+    // Called on the RTCP thread; the encoder is reconfigured on its own thread without a restart
+    private void applyBitRate(int bitRate) {
+        Log.i(TAG, "Bitrate -> " + bitRate / 1024 + " kbps (" + bitrateController.getLastDecision() + ")");
+        if (pacer != null) {
+            pacer.setBitRate((int) (bitRate * PACING_FACTOR));
+        }
+        encoderHandler.post(() -> {
+            try {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+                videoEncoder.setParameters(params);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Failed to update encoder bitrate", e);
+            }
+        });
+    }
+
     private void createVirtualDisplay() {
         DisplayMetrics displayMetrics = getActualDisplayMetrics();
         virtualDisplay = mediaProjection.createVirtualDisplay(
@@ -194,8 +418,50 @@ public class ScreenStreamingService extends Service {
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "ScreenStreamingService destroyed.");
-        if (udpSocket != null) {
-            udpSocket.close();
+        if (StreamMetrics.getCurrent() == metrics) {
+            StreamMetrics.setCurrent(null);
+        }
+        if (pathMtuProber != null) {
+            pathMtuProber.stop();
+        }
+        if (rtcpSession != null) {
+            rtcpSession.stop();
+        }
+        if (fecEncoder != null) {
+            Log.d(TAG, "FEC sent " + fecEncoder.getFecPackets() + " parity packets (" + fecEncoder.getFecBytes()
+                    + " bytes) for " + fecEncoder.getMediaPackets() + " media packets (" + fecEncoder.getMediaBytes()
+                    + " bytes), overhead " + Math.round(fecEncoder.getOverheadRatio() * 100) + "%");
+        }
+        if (packetHistory != null) {
+            Log.d(TAG, "Retransmitted " + packetHistory.getRetransmittedPackets() + " packets, "
+                    + packetHistory.getMissedRetransmissions() + " NACKed packets were no longer available");
+        }
+        if (bitrateController != null) {
+            Log.d(TAG, "Bitrate " + bitrateController.getTargetBitRate() / 1024 + " kbps (bounds "
+                    + bitrateController.getMinBitRate() / 1024 + "-" + bitrateController.getMaxBitRate() / 1024
+                    + " kbps), " + bitrateController.getIncreases() + " increases, "
+                    + bitrateController.getDecreases() + " decreases");
+        }
+        if (linkQuality != null) {
+            Log.d(TAG, "Link: " + linkQuality.getReports() + " receiver reports, " + linkQuality.getCumulativeLost()
+                    + " of " + linkQuality.getPacketsExpected() + " packets lost, smoothed loss "
+                    + Math.round(linkQuality.getSmoothedLoss() * 1000) / 10f + "%, jitter max "
+                    + linkQuality.getMaxJitterUs() / 1000 + " ms, RTT " + linkQuality.getSmoothedRttUs() / 1000
+                    + " ms (min " + linkQuality.getMinRttUs() / 1000 + " ms)");
+        }
+        Log.d(TAG, "Keyframes requested: " + keyFrameRequests + ", throttled: " + keyFrameRequestsThrottled);
+        if (frameSender != null) {
+            Log.d(TAG, "Frame queue dropped " + frameSender.getDroppedFrames() + " frames, max depth "
+                    + frameSender.getMaxDepth() + "; latency drops: " + frameSender.getNonReferenceDrops()
+                    + " non-reference, " + frameSender.getKeyFrameSkipDrops() + " skipping to a keyframe");
+            frameSender.close();
+        }
+        if (sendEngine != null) {
+            try {
+                sendEngine.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing RTP send engine", e);
+            }
         }
         if (virtualDisplay != null) {
             virtualDisplay.release();
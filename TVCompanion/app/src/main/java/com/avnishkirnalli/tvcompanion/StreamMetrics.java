@@ -0,0 +1,95 @@
+package com.avnishkirnalli.tvcompanion;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of one streaming session.
+ * The send path records into lock-free counters and histograms; other components (pacer, FEC, bitrate
+ * controller, ...) register gauges that are only read when a snapshot is taken. The session that is
+ * currently streaming publishes itself with setCurrent() so CompanionService can serve snapshots
+ * over the control socket.
+ */
+public class StreamMetrics {
+    private static volatile StreamMetrics current;
+
+    private final long startTimeMs = System.currentTimeMillis();
+
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong idrFrames = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+
+    private final Histogram packetizeTimeUs = new Histogram(50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000);
+    private final Histogram sendTimeUs = new Histogram(50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000);
+    private final Histogram frameSizeBytes = new Histogram(1024, 4096, 16384, 32768, 65536, 131072, 262144, 524288);
+
+    private final Map<String, Supplier<Object>> gauges = new LinkedHashMap<>();
+
+    public static StreamMetrics getCurrent() {
+        return current;
+    }
+
+    public static void setCurrent(StreamMetrics metrics) {
+        current = metrics;
+    }
+
+    public void onPacketSent(int length) {
+        packets.incrementAndGet();
+        bytes.addAndGet(length);
+    }
+
+    public void onSendError() {
+        sendErrors.incrementAndGet();
+    }
+
+    /** A frame has been packetized; sendTimeUs is the part of the total spent inside the send engine. */
+    public void onFrameSent(int size, boolean idr, long packetizeTimeUs, long sendTimeUs) {
+        frames.incrementAndGet();
+        if (idr) {
+            idrFrames.incrementAndGet();
+        }
+        frameSizeBytes.record(size);
+        this.packetizeTimeUs.record(packetizeTimeUs);
+        this.sendTimeUs.record(sendTimeUs);
+    }
+
+    public synchronized void addGauge(String name, Supplier<Object> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public long getPackets() {
+        return packets.get();
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getSendErrors() {
+        return sendErrors.get();
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("uptimeMs", System.currentTimeMillis() - startTimeMs);
+        json.put("packets", packets.get());
+        json.put("bytes", bytes.get());
+        json.put("frames", frames.get());
+        json.put("idrFrames", idrFrames.get());
+        json.put("sendErrors", sendErrors.get());
+        json.put("packetizeTimeUs", packetizeTimeUs.toJson());
+        json.put("sendTimeUs", sendTimeUs.toJson());
+        json.put("frameSizeBytes", frameSizeBytes.toJson());
+        for (Map.Entry<String, Supplier<Object>> gauge : gauges.entrySet()) {
+            json.put(gauge.getKey(), gauge.getValue().get());
+        }
+        return json;
+    }
+}
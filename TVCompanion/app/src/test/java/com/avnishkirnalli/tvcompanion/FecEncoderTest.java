@@ -0,0 +1,179 @@
+package com.avnishkirnalli.tvcompanion;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FecEncoderTest {
+    private static final int FEC_HEADER_OFFSET = 12;
+    private static final int PARITY_OFFSET = 12 + 10 + 4;
+
+    private static class CapturingEngine implements RtpSendEngine {
+        final List<byte[]> packets = new ArrayList<>();
+
+        @Override
+        public void send(ByteBuffer header, ByteBuffer payload) {
+            byte[] packet = new byte[header.remaining() + payload.remaining()];
+            int headerLength = header.remaining();
+            header.get(packet, 0, headerLength);
+            payload.get(packet, headerLength, packet.length - headerLength);
+            packets.add(packet);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final Random random = new Random(42);
+
+    private byte[] mediaPacket(int seq, int timestamp, boolean marker, int payloadLength) {
+        byte[] packet = new byte[12 + payloadLength];
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) ((marker ? 0x80 : 0) | 96);
+        packet[2] = (byte) (seq >> 8);
+        packet[3] = (byte) seq;
+        ByteBuffer.wrap(packet).putInt(4, timestamp).putInt(8, 0x12345678);
+        for (int i = 12; i < packet.length; i++) {
+            packet[i] = (byte) random.nextInt();
+        }
+        return packet;
+    }
+
+    private static void send(FecEncoder encoder, byte[] packet) throws Exception {
+        encoder.send(ByteBuffer.wrap(packet, 0, 12), ByteBuffer.wrap(packet, 12, packet.length - 12));
+    }
+
+    private static boolean isFec(byte[] packet) {
+        return (packet[1] & 0x7F) == FecEncoder.FEC_PAYLOAD_TYPE;
+    }
+
+    private static int mask(byte[] fec) {
+        return ByteBuffer.wrap(fec).getShort(FEC_HEADER_OFFSET + 12) & 0xFFFF;
+    }
+
+    private static int snBase(byte[] fec) {
+        return ByteBuffer.wrap(fec).getShort(FEC_HEADER_OFFSET + 2) & 0xFFFF;
+    }
+
+    @Test
+    public void closesGroupAfterGroupSizePackets() throws Exception {
+        CapturingEngine engine = new CapturingEngine();
+        FecEncoder encoder = new FecEncoder(engine, 4);
+        for (int seq = 0; seq < 8; seq++) {
+            send(encoder, mediaPacket(seq, 3000, false, 100));
+        }
+
+        assertEquals(10, engine.packets.size());
+        assertTrue(isFec(engine.packets.get(4)));
+        assertTrue(isFec(engine.packets.get(9)));
+        assertEquals(0xF000, mask(engine.packets.get(4)));
+        assertEquals(0, snBase(engine.packets.get(4)));
+        assertEquals(4, snBase(engine.packets.get(9)));
+    }
+
+    @Test
+    public void groupsSpanSmallFrames() throws Exception {
+        CapturingEngine engine = new CapturingEngine();
+        FecEncoder encoder = new FecEncoder(engine, 4);
+        // One-packet frames 10 ms apart share parity packets instead of each getting a copy of itself
+        for (int seq = 0; seq < 8; seq++) {
+            send(encoder, mediaPacket(seq, seq * 900, true, 100));
+        }
+
+        assertEquals(10, engine.packets.size());
+        assertEquals(0xF000, mask(engine.packets.get(4)));
+        assertEquals(0xF000, mask(engine.packets.get(9)));
+        assertEquals(4, snBase(engine.packets.get(9)));
+    }
+
+    @Test
+    public void closesShortGroupAtTheEndOfAFrameAfterMaxSpan() throws Exception {
+        CapturingEngine engine = new CapturingEngine();
+        FecEncoder encoder = new FecEncoder(engine, 8);
+        int frameTicks = 3000; // 30 fps
+        send(encoder, mediaPacket(10, 0, false, 300));
+        send(encoder, mediaPacket(11, 0, true, 200));
+        send(encoder, mediaPacket(12, frameTicks, true, 50));
+        assertEquals(3, engine.packets.size());
+
+        // The frame ending 40 ms or more after the group started closes it, even though it is not full
+        send(encoder, mediaPacket(13, 2 * frameTicks, false, 80));
+        assertEquals(4, engine.packets.size());
+        send(encoder, mediaPacket(14, 2 * frameTicks, true, 80));
+        assertEquals(6, engine.packets.size());
+        byte[] fec = engine.packets.get(5);
+        assertTrue(isFec(fec));
+        assertEquals(0xF800, mask(fec));
+        assertEquals(10, snBase(fec));
+        assertEquals(300, ByteBuffer.wrap(fec).getShort(FEC_HEADER_OFFSET + 10) & 0xFFFF);
+
+        // The next frame starts a new group
+        send(encoder, mediaPacket(15, 3 * frameTicks, true, 80));
+        assertEquals(7, engine.packets.size());
+        send(encoder, mediaPacket(16, 5 * frameTicks, true, 80));
+        assertEquals(9, engine.packets.size());
+        assertEquals(15, snBase(engine.packets.get(8)));
+        assertEquals(0xC000, mask(engine.packets.get(8)));
+    }
+
+    @Test
+    public void parityRebuildsAnyLostPacketOfTheGroup() throws Exception {
+        CapturingEngine engine = new CapturingEngine();
+        FecEncoder encoder = new FecEncoder(engine, 4);
+        byte[][] media = {
+                mediaPacket(100, 9000, false, 1200),
+                mediaPacket(101, 9000, false, 1200),
+                mediaPacket(102, 9000, false, 777),
+                mediaPacket(103, 9000, true, 13),
+        };
+        for (byte[] packet : media) {
+            send(encoder, packet);
+        }
+        byte[] fec = engine.packets.get(media.length);
+        ByteBuffer fecView = ByteBuffer.wrap(fec);
+        int protectionLength = fecView.getShort(FEC_HEADER_OFFSET + 10) & 0xFFFF;
+
+        for (int lost = 0; lost < media.length; lost++) {
+            byte byte1 = fec[FEC_HEADER_OFFSET + 1];
+            int timestamp = fecView.getInt(FEC_HEADER_OFFSET + 4);
+            int length = fecView.getShort(FEC_HEADER_OFFSET + 8) & 0xFFFF;
+            byte[] payload = new byte[protectionLength];
+            System.arraycopy(fec, PARITY_OFFSET, payload, 0, protectionLength);
+            for (int i = 0; i < media.length; i++) {
+                if (i == lost) continue;
+                byte1 ^= media[i][1];
+                timestamp ^= ByteBuffer.wrap(media[i]).getInt(4);
+                length ^= media[i].length - 12;
+                for (int j = 0; j < media[i].length - 12; j++) {
+                    payload[j] ^= media[i][12 + j];
+                }
+            }
+
+            byte[] expected = new byte[media[lost].length - 12];
+            System.arraycopy(media[lost], 12, expected, 0, expected.length);
+            byte[] rebuilt = new byte[length & 0xFFFF];
+            System.arraycopy(payload, 0, rebuilt, 0, rebuilt.length);
+            assertEquals(media[lost][1], byte1);
+            assertEquals(9000, timestamp);
+            assertArrayEquals("packet " + lost, expected, rebuilt);
+        }
+    }
+
+    @Test
+    public void reportsOverheadInBytes() throws Exception {
+        CapturingEngine engine = new CapturingEngine();
+        FecEncoder encoder = new FecEncoder(engine, 4);
+        send(encoder, mediaPacket(0, 0, false, 988));
+        send(encoder, mediaPacket(1, 3600, true, 88));
+
+        assertEquals(1000 + 100, encoder.getMediaBytes());
+        assertEquals(PARITY_OFFSET + 988, encoder.getFecBytes());
+        assertEquals((PARITY_OFFSET + 988) / 1100f, encoder.getOverheadRatio(), 1e-6);
+    }
+}
@@ -0,0 +1,192 @@
+package com.avnishkirnalli.tvcompanion;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NalUnitIndexTest {
+    private static final int FUZZ_CASES = 20_000;
+    private static final int IDR_FRAME_SIZE = 1_000_000; // A 4K IDR at a typical streaming bitrate
+    private static final int IDR_SLICES = 8;
+
+    private final Random random = new Random(12);
+
+    // Byte at a time reference: NAL units run from after a 00 00 01 to the next one, minus zero bytes in front of it
+    private static List<int[]> naiveScan(ByteBuffer data, int start, int end) {
+        List<int[]> nalUnits = new ArrayList<>();
+        int nalStart = -1;
+        for (int i = start; i + 2 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                if (nalStart >= 0) {
+                    addTrimmed(nalUnits, data, nalStart, i);
+                }
+                nalStart = i + 3;
+                i += 2;
+            }
+        }
+        if (nalStart >= 0) {
+            addTrimmed(nalUnits, data, nalStart, end);
+        } else if (end > start) {
+            nalUnits.add(new int[]{start, end - start});
+        }
+        return nalUnits;
+    }
+
+    private static void addTrimmed(List<int[]> nalUnits, ByteBuffer data, int nalStart, int nalEnd) {
+        while (nalEnd > nalStart && data.get(nalEnd - 1) == 0) {
+            nalEnd--;
+        }
+        if (nalEnd > nalStart) {
+            nalUnits.add(new int[]{nalStart, nalEnd - nalStart});
+        }
+    }
+
+    private static void assertSameAsNaive(NalUnitIndex index, ByteBuffer data, int start, int end) {
+        List<int[]> expected = naiveScan(data, start, end);
+        int count = index.scan(data, start, end);
+        assertEquals("NAL units in [" + start + ", " + end + ")", expected.size(), count);
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals("NAL unit " + i + " in [" + start + ", " + end + ")", expected.get(i),
+                    new int[]{index.getOffset(i), index.getLength(i)});
+        }
+    }
+
+    // NAL unit payload with emulation prevention applied, so 00 00 0x (x <= 3) never occurs. Dense zeros exercise
+    // the byte by byte path; otherwise the bytes are uniform, like entropy coded slice data.
+    private void writeNalUnit(ByteArrayOutputStream out, int type, int length, boolean denseZeros) {
+        out.write(0x60 | type);
+        int zeros = 0;
+        for (int i = 1; i < length; i++) {
+            int b = denseZeros && random.nextInt(4) == 0 ? 0 : random.nextInt(256);
+            if (zeros == 2 && b <= 3) {
+                out.write(3);
+                zeros = 0;
+            }
+            out.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        if (zeros > 0) {
+            out.write(0x80); // rbsp_stop_one_bit, a NAL unit never ends in a zero byte
+        }
+    }
+
+    private static ByteBuffer buffer(byte[] bytes, boolean direct) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.allocate(bytes.length);
+        buffer.put(bytes);
+        buffer.clear();
+        return buffer;
+    }
+
+    @Test
+    public void findsNalUnitsBehindThreeAndFourByteStartCodes() {
+        byte[] stream = {0, 0, 0, 1, 0x67, 1, 2, 0, 0, 1, 0x68, 3, 0, 0, 0, 1, 0x65, 4, 5, 6, 7, 8, 9, 10, 11};
+        NalUnitIndex index = new NalUnitIndex();
+        assertEquals(3, index.scan(ByteBuffer.wrap(stream), 0, stream.length));
+        assertArrayEquals(new int[]{4, 3}, new int[]{index.getOffset(0), index.getLength(0)});
+        assertArrayEquals(new int[]{10, 2}, new int[]{index.getOffset(1), index.getLength(1)});
+        assertArrayEquals(new int[]{16, 9}, new int[]{index.getOffset(2), index.getLength(2)});
+    }
+
+    @Test
+    public void stripsTrailingZerosAndSkipsEmptyNalUnits() {
+        byte[] stream = {0, 0, 1, 0x41, 9, 0, 0, 0, 0, 0, 1, 0, 0, 1, 0x41, 7, 0, 0};
+        NalUnitIndex index = new NalUnitIndex();
+        assertEquals(2, index.scan(ByteBuffer.wrap(stream), 0, stream.length));
+        assertArrayEquals(new int[]{3, 2}, new int[]{index.getOffset(0), index.getLength(0)});
+        assertArrayEquals(new int[]{14, 2}, new int[]{index.getOffset(1), index.getLength(1)});
+    }
+
+    @Test
+    public void takesRangeWithoutStartCodeAsOneNalUnit() {
+        byte[] stream = {0x41, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        NalUnitIndex index = new NalUnitIndex();
+        assertEquals(1, index.scan(ByteBuffer.wrap(stream), 2, 9));
+        assertArrayEquals(new int[]{2, 7}, new int[]{index.getOffset(0), index.getLength(0)});
+        assertEquals(0, index.scan(ByteBuffer.wrap(stream), 4, 4));
+    }
+
+    @Test
+    public void matchesNaiveScannerOnRandomStreams() {
+        NalUnitIndex index = new NalUnitIndex();
+        for (int c = 0; c < FUZZ_CASES; c++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int lead = random.nextInt(9); // Unaligned starts
+            for (int i = 0; i < lead; i++) {
+                out.write(random.nextInt(3) == 0 ? 0 : 0x55);
+            }
+            int nalCount = random.nextInt(6);
+            for (int n = 0; n < nalCount; n++) {
+                if (random.nextBoolean()) {
+                    out.write(0);
+                }
+                out.write(0);
+                out.write(0);
+                out.write(1);
+                writeNalUnit(out, 1 + random.nextInt(23), 1 + random.nextInt(random.nextBoolean() ? 12 : 300),
+                        random.nextBoolean());
+                for (int z = random.nextInt(4) == 0 ? random.nextInt(5) : 0; z > 0; z--) {
+                    out.write(0); // trailing_zero_8bits
+                }
+            }
+            int tail = random.nextInt(9);
+            for (int i = 0; i < tail; i++) {
+                out.write(random.nextInt(2) == 0 ? 0 : 1); // Partial start codes where the buffer ends
+            }
+            byte[] bytes = out.toByteArray();
+            ByteBuffer data = buffer(bytes, random.nextBoolean());
+
+            assertSameAsNaive(index, data, 0, bytes.length);
+            // Ranges that start and end anywhere, e.g. in the middle of a word or a start code
+            int start = random.nextInt(bytes.length + 1);
+            int end = start + random.nextInt(bytes.length - start + 1);
+            assertSameAsNaive(index, data, start, end);
+        }
+    }
+
+    @Test
+    public void matchesNaiveScannerOnUnconstrainedBytes() {
+        NalUnitIndex index = new NalUnitIndex();
+        for (int c = 0; c < FUZZ_CASES; c++) {
+            byte[] bytes = new byte[random.nextInt(64)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) random.nextInt(3); // Dense in zeros and ones, anything can be a start code
+            }
+            ByteBuffer data = buffer(bytes, random.nextBoolean());
+            int start = random.nextInt(bytes.length + 1);
+            assertSameAsNaive(index, data, start, bytes.length);
+        }
+    }
+
+    @Test
+    public void findsEverySliceOfA4kIdrFrame() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(IDR_FRAME_SIZE + 4096);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        writeNalUnit(out, 7, 24, false); // SPS
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        writeNalUnit(out, 8, 6, false); // PPS
+        for (int s = 0; s < IDR_SLICES; s++) {
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            writeNalUnit(out, 5, IDR_FRAME_SIZE / IDR_SLICES, false);
+        }
+        byte[] bytes = out.toByteArray();
+        ByteBuffer frame = buffer(bytes, true); // Codec output buffers are direct
+
+        NalUnitIndex index = new NalUnitIndex();
+        assertEquals(2 + IDR_SLICES, index.scan(frame, 0, bytes.length));
+        assertSameAsNaive(index, frame, 0, bytes.length);
+    }
+}
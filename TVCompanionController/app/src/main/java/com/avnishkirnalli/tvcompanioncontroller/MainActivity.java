@@ -27,6 +27,7 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.avnishkirnalli.tvcompanioncontroller.model.DiscoveredDevice;
 import com.avnishkirnalli.tvcompanioncontroller.model.SavedUrl;
+import com.avnishkirnalli.tvcompanioncontroller.network.ClockSync;
 import com.avnishkirnalli.tvcompanioncontroller.network.NsdHelper;
 import com.avnishkirnalli.tvcompanioncontroller.pairing.PairingClient;
 import com.avnishkirnalli.tvcompanioncontroller.pairing.TvCompanion;
@@ -93,6 +94,7 @@ public class MainActivity extends AppCompatActivity implements NsdHelper.NsdList
     private SurfaceView surfaceView;
     private RTPReceiver rtpReceiver;
     private Socket clientSocket;
+    private ClockSync clockSync;
     private DiscoveredDevice streamingDevice;
 
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
@@ -394,8 +396,12 @@ public class MainActivity extends AppCompatActivity implements NsdHelper.NsdList
         new Thread(() -> {
             try {
                 clientSocket = new Socket(streamingDevice.getHostAddress(), streamingDevice.getPort());
-                rtpReceiver = new RTPReceiver(surface);
-                rtpReceiver.start();
+                RTPReceiver receiver = new RTPReceiver(surface);
+                rtpReceiver = receiver;
+                receiver.start();
+                // Lines up the TV's capture times with ours for the latency stats
+                clockSync = new ClockSync(clientSocket, (offsetUs, roundTripUs) -> receiver.setClockOffsetUs(offsetUs));
+                clockSync.start();
             } catch (Exception e) {
                 Log.e(TAG, "Failed to connect to device", e);
             }
@@ -403,6 +409,10 @@ public class MainActivity extends AppCompatActivity implements NsdHelper.NsdList
     }
 
     private void stopStream() {
+        if (clockSync != null) {
+            clockSync.shutdown();
+            clockSync = null;
+        }
         if (rtpReceiver != null) {
             new Thread(() -> {
                 rtpReceiver.shutdown();
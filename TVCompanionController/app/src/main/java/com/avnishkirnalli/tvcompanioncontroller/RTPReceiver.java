@@ -1,68 +1,137 @@
 package com.avnishkirnalli.tvcompanioncontroller;
 
 import android.media.MediaCodec;
-import android.media.MediaFormat;
 import android.util.Log;
 import android.view.Surface;
 
+import com.avnishkirnalli.tvcompanioncontroller.stream.AccessUnitAssembler;
+import com.avnishkirnalli.tvcompanioncontroller.stream.DatagramChannelReceiveEngine;
+import com.avnishkirnalli.tvcompanioncontroller.stream.DatagramSocketReceiveEngine;
+import com.avnishkirnalli.tvcompanioncontroller.stream.FrameQueue;
+import com.avnishkirnalli.tvcompanioncontroller.stream.JitterBuffer;
+import com.avnishkirnalli.tvcompanioncontroller.stream.LatencyStats;
+import com.avnishkirnalli.tvcompanioncontroller.stream.PlayoutScheduler;
+import com.avnishkirnalli.tvcompanioncontroller.stream.ReceiverStatistics;
+import com.avnishkirnalli.tvcompanioncontroller.stream.RtcpSession;
+import com.avnishkirnalli.tvcompanioncontroller.stream.RtpReceiveEngine;
+import com.avnishkirnalli.tvcompanioncontroller.stream.VideoDecoder;
+
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
 public class RTPReceiver extends Thread {
     private static final String TAG = "RTPReceiver";
     private static final int RTP_PORT = 5005;
+    private static final int RTCP_PORT = RTP_PORT + 1;
+    private static final int H264_PAYLOAD_TYPE = 96;
+    private static final int RTX_PAYLOAD_TYPE = 97; // Retransmissions (RFC 4588)
+    // RFC 8285 one-byte header extension the TV puts on the last packet of each frame, with fixed element IDs
+    private static final int EXTENSION_PROFILE_ONE_BYTE = 0xBEDE;
+    private static final int CAPTURE_TIME_EXTENSION_ID = 1; // 8 bytes: capture time in microseconds, TV clock
+    private static final int ENCODE_TIME_EXTENSION_ID = 2; // 4 bytes: microseconds from capture to encoder output
     private static final int MAX_PACKET_SIZE = 65536;
-    private static final int MAX_NAL_SIZE = 1024 * 1024; // 1MB for large frames
-
-    private DatagramSocket socket;
-    private MediaCodec decoder;
-    private Surface surface;
+    private static final int RECEIVE_BUFFER_SIZE = 2 * 1024 * 1024; // 2MB buffer
+    // Non-blocking channel that drains the socket in batches into direct buffers, or a blocking DatagramSocket
+    private static final boolean USE_DATAGRAM_CHANNEL = true;
+    private static final int MAX_ACCESS_UNIT_SIZE = 1024 * 1024; // 1MB for large frames
+    // How long packets are held for reordering, retransmission or FEC; adapts to the measured jitter within these bounds
+    private static final long JITTER_BUFFER_MIN_DELAY_MS = 80;
+    private static final long JITTER_BUFFER_MAX_DELAY_MS = 300;
+    private static final int CLOCK_RATE = 90000;
+    private static final int SOCKET_TIMEOUT_MS = 20; // Wake up at least this often to check recovery timeouts
+    private static final long REPORT_INTERVAL_MS = 500; // Receiver Reports drive the TV's bitrate controller
+    private static final long KEY_FRAME_REQUEST_RETRY_MS = 300; // Repeat the PLI/FIR until a keyframe shows up
+    private static final int DECODE_QUEUE_SLOTS = 8; // Frames waiting for a decoder input buffer, a power of two
+    // Capture to render latency to play out at; raised to what the pipeline manages if it can't be met
+    private static final long TARGET_LATENCY_MS = 150;
+    // Frames later than this are skipped when a newer one is on its way, so the display catches up after a stall
+    private static final long DROP_LATENESS_MS = 50;
+
+    private RtpReceiveEngine receiveEngine;
+    private RtcpSession rtcpSession;
+    private VideoDecoder videoDecoder;
     private volatile boolean running = true;
 
-    // H.264 NAL unit reassembly
-    private ArrayList<byte[]> fuaFragments = new ArrayList<>();
-    private int fuaTotalSize = 0;
-
-    public RTPReceiver(Surface surface) throws IOException {
-        this.surface = surface;
-        socket = new DatagramSocket(RTP_PORT);
-        socket.setReceiveBufferSize(2 * 1024 * 1024); // 2MB buffer
-        setupDecoder();
-    }
-
-    private void setupDecoder() throws IOException {
-        decoder = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
-
-        // Use actual stream resolution: 1280x720
-        MediaFormat format = MediaFormat.createVideoFormat(
-                MediaFormat.MIMETYPE_VIDEO_AVC,
-                1280,
-                720
-        );
+    // Orders packets and repairs losses (NACK/RTX, FEC) before depacketization
+    private final JitterBuffer jitterBuffer = new JitterBuffer(this::processRTPPacket,
+            JITTER_BUFFER_MIN_DELAY_MS, JITTER_BUFFER_MAX_DELAY_MS);
+    private long mediaSsrc = 0;
+    private final byte[] packetBuffer = new byte[MAX_PACKET_SIZE]; // FEC and RTX packets, which are read as arrays
+    private final byte[] rtxBuffer = new byte[MAX_PACKET_SIZE];
+
+    // Sequence gaps as they come off the socket: gaps while the receiver is backed up are the socket buffer
+    // overflowing, the rest is loss on the network
+    private int lastSocketSeq = -1;
+    private long socketOverflowPackets = 0;
+    private long networkLostPackets = 0;
+
+    // Reception statistics for the Receiver Reports
+    private final ReceiverStatistics receiverStatistics = new ReceiverStatistics();
+    private long lastReportMs = 0;
+
+    // Keyframe recovery: set when the picture is known to be broken, cleared by the next IDR
+    private boolean waitingForKeyFrame = false;
+    private volatile boolean decoderNeedsKeyFrame = false; // Set on the decoder thread, handled on the receive thread
+    private boolean fullIntraRequest = false;
+    private long lastKeyFrameRequestMs = 0;
+    private long keyFrameRequests = 0;
+
+    // Frames on their way to the decoder thread
+    private final FrameQueue frameQueue = new FrameQueue(DECODE_QUEUE_SLOTS, MAX_ACCESS_UNIT_SIZE,
+            () -> requestKeyFrame(false));
+
+    // H.264 depacketization: NAL units and FU-A fragments are written straight into the next frame queue slot,
+    // so the decoder gets one input buffer per access unit
+    private final AccessUnitAssembler accessUnitAssembler =
+            new AccessUnitAssembler(frameQueue, new AccessUnitAssembler.Listener() {
+                @Override
+                public void onAccessUnitQueued(long timestamp, int flags, boolean resumePoint) {
+                    if (resumePoint) {
+                        waitingForKeyFrame = false;
+                        fullIntraRequest = false;
+                    }
+                    videoDecoder.onFrameQueued();
+                }
 
-        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_NAL_SIZE);
-        format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+                @Override
+                public void onKeyFrameNeeded() {
+                    requestKeyFrame(false);
+                }
+            });
+    private int lastDepacketizedSeq = -1; // Sequence continuity after the jitter buffer
 
-        decoder.configure(format, surface, null, 0);
-        decoder.start();
+    // Per-stage latency, from the capture times the TV stamps on frames
+    private final LatencyStats latencyStats = new LatencyStats();
+    private final PlayoutScheduler playoutScheduler = new PlayoutScheduler(TARGET_LATENCY_MS, DROP_LATENESS_MS);
 
-        Log.d(TAG, "MediaCodec decoder started for 1280x720");
+    public RTPReceiver(Surface surface) throws IOException {
+        if (USE_DATAGRAM_CHANNEL) {
+            receiveEngine = new DatagramChannelReceiveEngine(RTP_PORT, RECEIVE_BUFFER_SIZE);
+        } else {
+            receiveEngine = new DatagramSocketReceiveEngine(RTP_PORT, RECEIVE_BUFFER_SIZE);
+        }
+        rtcpSession = new RtcpSession(RTCP_PORT);
+        jitterBuffer.setLossListener(new JitterBuffer.LossListener() {
+            @Override
+            public void onPacketsMissing(int pid, int blp) {
+                rtcpSession.sendNack(mediaSsrc, pid, blp);
+            }
+        });
+        // Configured for the stream's real resolution once its SPS arrives
+        videoDecoder = new VideoDecoder(surface, frameQueue, MAX_ACCESS_UNIT_SIZE, () -> decoderNeedsKeyFrame = true,
+                latencyStats, playoutScheduler);
     }
 
     @Override
     public void run() {
-        byte[] buffer = new byte[MAX_PACKET_SIZE];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-
         Log.d(TAG, "RTP Receiver started on port " + RTP_PORT);
 
         while (running) {
             try {
-                socket.receive(packet);
-                processRTPPacket(packet.getData(), packet.getLength());
+                receiveEngine.receive(this::onDatagram, SOCKET_TIMEOUT_MS);
+                jitterBuffer.checkTimeout();
+                maybeSendReport();
+                maybeRepeatKeyFrameRequest();
             } catch (IOException e) {
                 if (running) {
                     Log.e(TAG, "Socket error", e);
@@ -72,7 +141,162 @@ public class RTPReceiver extends Thread {
             }
         }
 
-        Log.d(TAG, "RTP Receiver stopped");
+        Log.d(TAG, "RTP Receiver stopped. FEC packets: " + jitterBuffer.getFecPackets()
+                + ", recovered: " + jitterBuffer.getRecoveredPackets()
+                + ", lost: " + jitterBuffer.getLostPackets()
+                + ", late: " + jitterBuffer.getLatePackets()
+                + ", duplicate: " + jitterBuffer.getDuplicatePackets()
+                + ", max depth: " + jitterBuffer.getMaxDepth()
+                + ", jitter buffer delay: " + jitterBuffer.getPlayoutDelayMs() + " ms"
+                + ", access units: " + accessUnitAssembler.getAccessUnits()
+                + ", incomplete: " + accessUnitAssembler.getIncompleteAccessUnits()
+                + ", oversized: " + frameQueue.getOversizedFrames()
+                + ", incomplete NAL units: " + accessUnitAssembler.getIncompleteNalUnits()
+                + ", damaged frames: " + accessUnitAssembler.getDamagedFrames()
+                + ", skipped frames: " + accessUnitAssembler.getSkippedFrames()
+                + ", decode queue max depth: " + frameQueue.getMaxDepth()
+                + ", dropped: " + frameQueue.getDroppedFrames()
+                + ", decoder configurations: " + videoDecoder.getConfigurations()
+                + ", decoder resets: " + videoDecoder.getCodecResets()
+                + ", skipped after oversized: " + videoDecoder.getFramesAfterOversized()
+                + ", render delay: " + playoutScheduler.getPlayoutDelayMs() + " ms"
+                + ", rendered late: " + playoutScheduler.getLateFrames()
+                + ", skipped late: " + playoutScheduler.getDroppedFrames()
+                + ", rendered: " + videoDecoder.getRenderer().getRenderedFrames()
+                + ", superseded: " + videoDecoder.getRenderer().getSupersededFrames()
+                + ", repeated vsyncs: " + videoDecoder.getRenderer().getRepeatedVsyncs()
+                + ", refresh rate: " + videoDecoder.getRenderer().getRefreshRate() + " Hz"
+                + ", pacing jitter (us): [" + videoDecoder.getRenderer().getPacingJitterUs() + "]"
+                + ", keyframe requests: " + keyFrameRequests
+                + ", sender reports: " + rtcpSession.getSenderReports()
+                + ", network lost: " + networkLostPackets
+                + ", socket overflow: " + socketOverflowPackets
+                + ", latency (us): " + latencyStats);
+    }
+
+    private void onDatagram(ByteBuffer packet) {
+        int length = packet.remaining();
+        if (length < 12) return; // Minimum RTP header size
+
+        int payloadType = packet.get(1) & 0x7F;
+        if (payloadType == JitterBuffer.FEC_PAYLOAD_TYPE) {
+            packet.get(packetBuffer, 0, length);
+            jitterBuffer.onFecPacket(packetBuffer, length);
+        } else if (payloadType == RTX_PAYLOAD_TYPE) {
+            packet.get(packetBuffer, 0, length);
+            int originalLength = unwrapRtx(packetBuffer, length);
+            if (originalLength > 0) {
+                jitterBuffer.onMediaPacket(rtxBuffer, originalLength);
+            }
+        } else {
+            // RTP header read straight from the receive buffer
+            mediaSsrc = packet.getInt(8) & 0xFFFFFFFFL;
+            int sequenceNumber = packet.getShort(2) & 0xFFFF;
+            long timestamp = packet.getInt(4) & 0xFFFFFFFFL;
+            long arrivalUs = System.nanoTime() / 1000;
+            countSequenceGap(sequenceNumber);
+            receiverStatistics.onPacket(sequenceNumber, timestamp, arrivalUs);
+            if ((packet.get(1) & 0x80) != 0) {
+                latencyStats.onFrameArrived(timestamp, arrivalUs);
+            }
+            jitterBuffer.setJitterMs(receiverStatistics.getJitter() * 1000 / CLOCK_RATE);
+            jitterBuffer.onMediaPacket(packet);
+        }
+    }
+
+    private void countSequenceGap(int sequenceNumber) {
+        if (lastSocketSeq >= 0) {
+            int jump = (short) (sequenceNumber - lastSocketSeq);
+            if (jump <= 0) {
+                return; // Reordered or duplicate
+            }
+            if (jump > 1) {
+                if (receiveEngine.isBacklogged()) {
+                    socketOverflowPackets += jump - 1;
+                } else {
+                    networkLostPackets += jump - 1;
+                }
+            }
+        }
+        lastSocketSeq = sequenceNumber;
+    }
+
+    private void maybeSendReport() {
+        long now = System.nanoTime() / 1_000_000;
+        if (lastReportMs == 0) {
+            lastReportMs = now;
+            return;
+        }
+        if (now - lastReportMs < REPORT_INTERVAL_MS || !receiverStatistics.hasData()) {
+            return;
+        }
+
+        receiverStatistics.prepareReport();
+        rtcpSession.sendReceiverReport(mediaSsrc, receiverStatistics, now - lastReportMs);
+        lastReportMs = now;
+    }
+
+    /**
+     * Asks the TV for a keyframe: a PLI after unrecoverable packet loss, or a FIR when the decoder itself failed.
+     * Requests are limited to one per KEY_FRAME_REQUEST_RETRY_MS and repeated at that rate until an IDR arrives.
+     */
+    private void requestKeyFrame(boolean fir) {
+        waitingForKeyFrame = true;
+        fullIntraRequest |= fir;
+        long now = System.nanoTime() / 1_000_000;
+        if (now - lastKeyFrameRequestMs >= KEY_FRAME_REQUEST_RETRY_MS) {
+            sendKeyFrameRequest(now);
+        }
+    }
+
+    private void maybeRepeatKeyFrameRequest() {
+        if (decoderNeedsKeyFrame) {
+            decoderNeedsKeyFrame = false;
+            requestKeyFrame(true);
+        }
+        if (!waitingForKeyFrame) return;
+        long now = System.nanoTime() / 1_000_000;
+        if (now - lastKeyFrameRequestMs >= KEY_FRAME_REQUEST_RETRY_MS) {
+            sendKeyFrameRequest(now);
+        }
+    }
+
+    private void sendKeyFrameRequest(long now) {
+        if (fullIntraRequest) {
+            rtcpSession.sendFir(mediaSsrc);
+        } else {
+            rtcpSession.sendPli(mediaSsrc);
+        }
+        lastKeyFrameRequestMs = now;
+        keyFrameRequests++;
+    }
+
+    /**
+     * Turns an RTX packet (RFC 4588) back into the original media packet in rtxBuffer.
+     * Returns the length of the restored packet, or -1 if it is malformed.
+     */
+    private int unwrapRtx(byte[] data, int length) {
+        int headerLength = 12 + (data[0] & 0x0F) * 4;
+        if ((data[0] & 0x10) != 0) {
+            if (headerLength + 4 > length) return -1;
+            int extLength = ((data[headerLength + 2] & 0xFF) << 8) | (data[headerLength + 3] & 0xFF);
+            headerLength += 4 + (extLength * 4);
+        }
+        if (headerLength + 2 > length) return -1;
+
+        // Original header with the media payload type, sequence number (OSN) and SSRC put back
+        System.arraycopy(data, 0, rtxBuffer, 0, headerLength);
+        rtxBuffer[1] = (byte) ((data[1] & 0x80) | H264_PAYLOAD_TYPE);
+        rtxBuffer[2] = data[headerLength];
+        rtxBuffer[3] = data[headerLength + 1];
+        rtxBuffer[8] = (byte) (mediaSsrc >> 24);
+        rtxBuffer[9] = (byte) (mediaSsrc >> 16);
+        rtxBuffer[10] = (byte) (mediaSsrc >> 8);
+        rtxBuffer[11] = (byte) mediaSsrc;
+
+        int payloadLength = length - headerLength - 2;
+        System.arraycopy(data, headerLength + 2, rtxBuffer, headerLength, payloadLength);
+        return headerLength + payloadLength;
     }
 
     private void processRTPPacket(byte[] data, int length) {
@@ -80,25 +304,37 @@ public class RTPReceiver extends Thread {
 
         try {
             // Parse RTP header
-            int version = (data[0] >> 6) & 0x03;
             boolean padding = ((data[0] >> 5) & 0x01) == 1;
             boolean extension = ((data[0] >> 4) & 0x01) == 1;
             int csrcCount = data[0] & 0x0F;
 
             boolean marker = ((data[1] >> 7) & 0x01) == 1;
-            int payloadType = data[1] & 0x7F;
-
             int sequenceNumber = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+
             long timestamp = ((data[4] & 0xFFL) << 24) | ((data[5] & 0xFFL) << 16)
                     | ((data[6] & 0xFFL) << 8) | (data[7] & 0xFFL);
 
             int headerLength = 12 + (csrcCount * 4);
+            long captureTimeUs = -1;
             if (extension) {
+                if (headerLength + 4 > length) return;
+                int profile = ((data[headerLength] & 0xFF) << 8) | (data[headerLength + 1] & 0xFF);
                 int extLength = ((data[headerLength + 2] & 0xFF) << 8) | (data[headerLength + 3] & 0xFF);
-                headerLength += 4 + (extLength * 4);
+                int extensionStart = headerLength + 4;
+                headerLength = extensionStart + (extLength * 4);
+                if (headerLength > length) return;
+                if (marker && profile == EXTENSION_PROFILE_ONE_BYTE) {
+                    captureTimeUs = readFrameTiming(data, extensionStart, headerLength, timestamp);
+                }
+            }
+
+            // The jitter buffer only skips packets it gave up on, so any gap here is loss that wasn't repaired
+            if (lastDepacketizedSeq >= 0 && sequenceNumber != ((lastDepacketizedSeq + 1) & 0xFFFF)) {
+                accessUnitAssembler.onSequenceGap();
             }
+            lastDepacketizedSeq = sequenceNumber;
 
-            // Extract H.264 payload
+            // H.264 payload, depacketized in place
             int payloadLength = length - headerLength;
             if (padding) {
                 payloadLength -= (data[length - 1] & 0xFF);
@@ -108,162 +344,137 @@ public class RTPReceiver extends Thread {
                 return;
             }
 
-            byte[] payload = new byte[payloadLength];
-            System.arraycopy(data, headerLength, payload, 0, payloadLength);
+            processH264Payload(data, headerLength, payloadLength, timestamp);
 
-            processH264Payload(payload, marker, timestamp);
+            if (marker) {
+                // Last packet of the frame
+                accessUnitAssembler.endAccessUnit(captureTimeUs);
+            }
         } catch (Exception e) {
             Log.e(TAG, "Error in processRTPPacket", e);
         }
     }
 
-    private void processH264Payload(byte[] payload, boolean marker, long timestamp) {
-        if (payload.length == 0) return;
-
-        try {
-            int nalUnitType = payload[0] & 0x1F;
-
-            if (nalUnitType >= 1 && nalUnitType <= 23) {
-                // Single NAL unit
-                feedToDecoder(payload, timestamp);
-            } else if (nalUnitType == 28) {
-                // FU-A (Fragmentation Unit)
-                handleFUA(payload, marker, timestamp);
-            } else if (nalUnitType == 24) {
-                // STAP-A (Single Time Aggregation Packet)
-                handleSTAPA(payload, timestamp);
+    /**
+     * Reads the capture and encode times from the elements of a one-byte header extension (RFC 8285 4.2) and
+     * records the frame's latency so far. Returns its capture time on the local clock, or -1 if unknown.
+     */
+    private long readFrameTiming(byte[] data, int offset, int end, long timestamp) {
+        long captureTimeUs = -1;
+        long encodeTimeUs = 0;
+        while (offset < end) {
+            int id = (data[offset] & 0xFF) >> 4;
+            if (id == 0) {
+                offset++; // Padding
+                continue;
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error in processH264Payload", e);
+            if (id == 15) {
+                break; // Reserved: stop parsing
+            }
+            int elementLength = (data[offset] & 0x0F) + 1;
+            offset++;
+            if (offset + elementLength > end) {
+                break;
+            }
+            if (id == CAPTURE_TIME_EXTENSION_ID && elementLength == 8) {
+                captureTimeUs = 0;
+                for (int i = 0; i < 8; i++) {
+                    captureTimeUs = (captureTimeUs << 8) | (data[offset + i] & 0xFF);
+                }
+            } else if (id == ENCODE_TIME_EXTENSION_ID && elementLength == 4) {
+                encodeTimeUs = ((data[offset] & 0xFFL) << 24) | ((data[offset + 1] & 0xFFL) << 16)
+                        | ((data[offset + 2] & 0xFFL) << 8) | (data[offset + 3] & 0xFFL);
+            }
+            offset += elementLength;
+        }
+        if (captureTimeUs < 0) {
+            return -1;
         }
+        return latencyStats.onFrameDepacketized(timestamp, captureTimeUs, encodeTimeUs, System.nanoTime() / 1000);
     }
 
-    private void handleFUA(byte[] payload, boolean marker, long timestamp) {
-        if (payload.length < 2) return;
-
-        try {
-            byte fuIndicator = payload[0];
-            byte fuHeader = payload[1];
-
-            boolean start = ((fuHeader >> 7) & 0x01) == 1;
-            boolean end = ((fuHeader >> 6) & 0x01) == 1;
-            int nalType = fuHeader & 0x1F;
-
-            if (start) {
-                // Start of fragmented NAL unit - clear previous fragments
-                fuaFragments.clear();
-                fuaTotalSize = 0;
-
-                // Add reconstructed NAL header
-                byte reconstructedNalHeader = (byte)((fuIndicator & 0xE0) | nalType);
-                byte[] headerFragment = new byte[1];
-                headerFragment[0] = reconstructedNalHeader;
-                fuaFragments.add(headerFragment);
-                fuaTotalSize += 1;
-            }
-
-            // Add fragment data (skip FU indicator and FU header)
-            if (payload.length > 2) {
-                byte[] fragment = new byte[payload.length - 2];
-                System.arraycopy(payload, 2, fragment, 0, payload.length - 2);
-                fuaFragments.add(fragment);
-                fuaTotalSize += fragment.length;
-            }
+    private void processH264Payload(byte[] data, int offset, int length, long timestamp) {
+        int nalUnitType = data[offset] & 0x1F;
+
+        if (nalUnitType >= 1 && nalUnitType <= 23) {
+            // Single NAL unit
+            accessUnitAssembler.addNalUnit(data, offset, length, timestamp);
+        } else if (nalUnitType == 28) {
+            // FU-A (Fragmentation Unit)
+            handleFUA(data, offset, length, timestamp);
+        } else if (nalUnitType == 24) {
+            // STAP-A (Single Time Aggregation Packet)
+            handleSTAPA(data, offset, length, timestamp);
+        }
+    }
 
-            if (end && marker) {
-                // Complete NAL unit - reassemble all fragments
-                if (fuaTotalSize > 0 && fuaTotalSize < MAX_NAL_SIZE) {
-                    byte[] completeNal = new byte[fuaTotalSize];
-                    int offset = 0;
+    private void handleFUA(byte[] data, int offset, int length, long timestamp) {
+        if (length < 2) return;
 
-                    for (byte[] fragment : fuaFragments) {
-                        System.arraycopy(fragment, 0, completeNal, offset, fragment.length);
-                        offset += fragment.length;
-                    }
+        byte fuIndicator = data[offset];
+        byte fuHeader = data[offset + 1];
 
-                    feedToDecoder(completeNal, timestamp);
-                } else {
-                    Log.w(TAG, "NAL unit too large or invalid: " + fuaTotalSize + " bytes");
-                }
+        boolean start = ((fuHeader >> 7) & 0x01) == 1;
+        boolean end = ((fuHeader >> 6) & 0x01) == 1;
+        int nalType = fuHeader & 0x1F;
 
-                // Clear fragments
-                fuaFragments.clear();
-                fuaTotalSize = 0;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error in handleFUA", e);
-            fuaFragments.clear();
-            fuaTotalSize = 0;
+        if (start) {
+            // Start of fragmented NAL unit, with its NAL header reconstructed
+            accessUnitAssembler.beginFragmentedNalUnit((byte) ((fuIndicator & 0xE0) | nalType), timestamp);
         }
+
+        // Fragment data follows the FU indicator and FU header
+        accessUnitAssembler.appendFragment(data, offset + 2, length - 2, timestamp, end);
     }
 
-    private void handleSTAPA(byte[] payload, long timestamp) {
-        try {
-            int offset = 1; // Skip STAP-A NAL header
+    private void handleSTAPA(byte[] data, int offset, int length, long timestamp) {
+        int end = offset + length;
+        offset++; // Skip STAP-A NAL header
 
-            while (offset < payload.length - 2) {
-                int nalSize = ((payload[offset] & 0xFF) << 8) | (payload[offset + 1] & 0xFF);
-                offset += 2;
+        while (offset < end - 2) {
+            int nalSize = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+            offset += 2;
 
-                if (offset + nalSize <= payload.length && nalSize > 0) {
-                    byte[] nal = new byte[nalSize];
-                    System.arraycopy(payload, offset, nal, 0, nalSize);
-                    feedToDecoder(nal, timestamp);
-                    offset += nalSize;
-                } else {
-                    break;
-                }
+            if (offset + nalSize <= end && nalSize > 0) {
+                accessUnitAssembler.addNalUnit(data, offset, nalSize, timestamp);
+                offset += nalSize;
+            } else {
+                break;
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error in handleSTAPA", e);
         }
     }
 
-    private void feedToDecoder(byte[] nalUnit, long timestamp) {
-        if (nalUnit == null || nalUnit.length == 0) return;
+    /** Whether frames are being held back from the decoder until a keyframe arrives. */
+    public boolean isWaitingForKeyFrame() {
+        return accessUnitAssembler.isWaitingForKeyFrame();
+    }
 
-        try {
-            int inputIndex = decoder.dequeueInputBuffer(10000);
-            if (inputIndex >= 0) {
-                ByteBuffer inputBuffer = decoder.getInputBuffer(inputIndex);
-                if (inputBuffer != null) {
-                    inputBuffer.clear();
-
-                    // Check if buffer has enough space
-                    if (inputBuffer.remaining() >= nalUnit.length + 4) {
-                        // Add start code
-                        inputBuffer.put(new byte[]{0x00, 0x00, 0x00, 0x01});
-                        inputBuffer.put(nalUnit);
-
-                        decoder.queueInputBuffer(inputIndex, 0, nalUnit.length + 4,
-                                timestamp, 0);
-                    } else {
-                        Log.w(TAG, "Input buffer too small for NAL unit: " + nalUnit.length);
-                    }
-                }
+    /** Sets the TV's clock minus ours in microseconds, which the cross-device latency stages need. */
+    public void setClockOffsetUs(long clockOffsetUs) {
+        latencyStats.setClockOffsetUs(clockOffsetUs);
+    }
 
-                // Render output
-                MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-                int outputIndex = decoder.dequeueOutputBuffer(bufferInfo, 0);
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
 
-                while (outputIndex >= 0) {
-                    decoder.releaseOutputBuffer(outputIndex, true);
-                    outputIndex = decoder.dequeueOutputBuffer(bufferInfo, 0);
-                }
-            }
-        } catch (IllegalStateException e) {
-            Log.e(TAG, "Decoder in invalid state", e);
-        } catch (Exception e) {
-            Log.e(TAG, "Error feeding to decoder", e);
-        }
+    public int getDecodeQueueDepth() {
+        return frameQueue.getDepth();
     }
 
     public void shutdown() {
         running = false;
 
         // Close socket first to interrupt receive()
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        if (receiveEngine != null) {
+            try {
+                receiveEngine.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing socket", e);
+            }
+        }
+        if (rtcpSession != null) {
+            rtcpSession.close();
         }
 
         // Wait for thread to finish
@@ -273,21 +484,10 @@ public class RTPReceiver extends Thread {
             Log.e(TAG, "Interrupted while waiting for thread to finish", e);
         }
 
-        // Release decoder
-        if (decoder != null) {
-            try {
-                decoder.stop();
-                decoder.release();
-                decoder = null;
-            } catch (Exception e) {
-                Log.e(TAG, "Error releasing decoder", e);
-            }
+        if (videoDecoder != null) {
+            videoDecoder.release();
         }
 
-        // Clear fragments
-        fuaFragments.clear();
-        fuaTotalSize = 0;
-
         Log.d(TAG, "RTP Receiver shutdown complete");
     }
 }
\ No newline at end of file
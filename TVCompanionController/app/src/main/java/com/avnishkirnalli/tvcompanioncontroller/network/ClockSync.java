@@ -0,0 +1,131 @@
+package com.avnishkirnalli.tvcompanioncontroller.network;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Estimates the offset between the TV's clock and ours over the companion control socket, so capture times the
+ * TV stamps on frames can be compared with local arrival and render times.
+ * Each round is NTP style: PING is sent at t0, the TV answers with its clock t1, the answer arrives at t3, and the
+ * offset is t1 - (t0 + t3) / 2, off by at most half the round trip. The round with the shortest round trip out of
+ * the last few is used, since queueing only ever makes the round trip longer. A burst at the start gets a first
+ * estimate quickly; after that the offset is refreshed now and then to follow clock drift.
+ */
+public class ClockSync extends Thread {
+    private static final String TAG = "ClockSync";
+    private static final int INITIAL_ROUNDS = 5;
+    private static final long INITIAL_INTERVAL_MS = 100;
+    private static final long INTERVAL_MS = 5000;
+    private static final int WINDOW = 8; // Rounds the best one is picked from
+    private static final int REPLY_TIMEOUT_MS = 2000;
+
+    public interface Listener {
+        /** The TV's clock minus ours, in microseconds; both are System.nanoTime(). */
+        void onClockOffset(long offsetUs, long roundTripUs);
+    }
+
+    private final Socket socket;
+    private final Listener listener;
+    private volatile boolean running = true;
+
+    private final long[] offsetsUs = new long[WINDOW];
+    private final long[] roundTripsUs = new long[WINDOW];
+    private int rounds = 0;
+
+    // Metrics
+    private volatile long offsetUs = 0;
+    private volatile long roundTripUs = -1; // Of the round the offset comes from, -1 until there is one
+
+    public ClockSync(Socket socket, Listener listener) {
+        super("ClockSync");
+        this.socket = socket;
+        this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+
+            while (running) {
+                long t0 = System.nanoTime() / 1000;
+                out.write("PING\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                String reply;
+                try {
+                    reply = reader.readLine();
+                } catch (SocketTimeoutException e) {
+                    Log.w(TAG, "No reply to PING, the TV may not support it");
+                    break;
+                }
+                long t3 = System.nanoTime() / 1000;
+                if (reply == null) {
+                    break; // Connection closed
+                }
+                onReply(reply.trim(), t0, t3);
+
+                Thread.sleep(rounds < INITIAL_ROUNDS ? INITIAL_INTERVAL_MS : INTERVAL_MS);
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.d(TAG, "Control connection closed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void onReply(String reply, long t0, long t3) {
+        if (!reply.startsWith("PONG ")) {
+            return;
+        }
+        long remoteUs;
+        try {
+            remoteUs = Long.parseLong(reply.substring(5));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Malformed PONG: " + reply);
+            return;
+        }
+
+        int index = rounds % WINDOW;
+        offsetsUs[index] = remoteUs - (t0 + t3) / 2;
+        roundTripsUs[index] = t3 - t0;
+        rounds++;
+
+        int best = 0;
+        for (int i = 1; i < Math.min(rounds, WINDOW); i++) {
+            if (roundTripsUs[i] < roundTripsUs[best]) {
+                best = i;
+            }
+        }
+        offsetUs = offsetsUs[best];
+        roundTripUs = roundTripsUs[best];
+        listener.onClockOffset(offsetUs, roundTripUs);
+    }
+
+    public long getOffsetUs() {
+        return offsetUs;
+    }
+
+    /** Round trip of the exchange the offset comes from; the offset is accurate to half of it. */
+    public long getRoundTripUs() {
+        return roundTripUs;
+    }
+
+    /** Stops after the current round; closing the socket ends it right away. */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+}
@@ -0,0 +1,282 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects the depacketized NAL units of one access unit (all NALs sharing an RTP timestamp, up to the packet with
+ * the marker bit) into a single Annex B buffer, so the decoder gets one input buffer per frame instead of one per
+ * NAL unit.
+ * The access unit is written in place into a FrameQueue slot: single NAL units and STAP-A aggregates are copied
+ * straight from the RTP packet, and FU-A fragments are appended one after the other, so a frame is copied exactly
+ * once on its way from the jitter buffer to the decoder queue and nothing is allocated per packet.
+ * Access units with an IDR slice are flagged BUFFER_FLAG_KEY_FRAME; the SPS/PPS the TV sends in front of them stay
+ * in-band. Parameter sets that arrive on their own are flagged BUFFER_FLAG_CODEC_CONFIG.
+ * Frames are only queued if they can decode correctly. After a gap in the packet sequence that wasn't repaired,
+ * the frame it hit is dropped, and so is every frame after it, since they reference a picture the decoder doesn't
+ * have, until an IDR or an SEI recovery point restarts the reference chain. Entering that state raises
+ * onKeyFrameNeeded() so the TV can be asked for a keyframe. Parameter sets always go through.
+ * Not thread safe; used on the RTP receive thread.
+ */
+public class AccessUnitAssembler {
+    private static final int START_CODE_LENGTH = 4;
+    private static final int NAL_TYPE_IDR = 5;
+    private static final int NAL_TYPE_SEI = 6;
+    private static final int SEI_RECOVERY_POINT = 6;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+
+    public interface Listener {
+        /** An access unit was queued for decoding; resumePoint if it is an IDR or SEI recovery point. */
+        void onAccessUnitQueued(long timestamp, int flags, boolean resumePoint);
+
+        /** Frames are being dropped until the next IDR or recovery point. */
+        void onKeyFrameNeeded();
+    }
+
+    private final FrameQueue frameQueue;
+    private final Listener listener;
+
+    private ByteBuffer frame = null; // Slot being filled, null until the access unit has data
+    private long timestamp = -1;
+    private boolean noSlot = false; // The queue was full when the access unit started
+    private boolean overflowed = false; // The access unit didn't fit its slot
+    private int fragmentStart = -1; // Where the FU-A NAL unit being reassembled starts, -1 if none
+    private boolean hasSlices = false;
+    private boolean hasParameterSets = false;
+    private boolean keyFrame = false;
+    private boolean recoveryPoint = false;
+    private boolean damaged = false; // Packets of the access unit are missing
+    private boolean gapBeforeNextAccessUnit = false; // Packets lost since the last one; maybe the next unit's head
+    private long captureTimeUs = -1; // Local clock, from the marker packet's header extension
+    private volatile boolean waitingForResumePoint = false;
+
+    // Stats
+    private volatile long accessUnits = 0;
+    private volatile long incompleteAccessUnits = 0;
+    private volatile long incompleteNalUnits = 0;
+    private volatile long sequenceGaps = 0;
+    private volatile long damagedFrames = 0;
+    private volatile long skippedFrames = 0; // Intact, but referencing a damaged frame
+
+    public AccessUnitAssembler(FrameQueue frameQueue, Listener listener) {
+        this.frameQueue = frameQueue;
+        this.listener = listener;
+    }
+
+    /**
+     * Packets are missing in front of the next one, for good: the jitter buffer gave up on them. Whatever access
+     * unit they belonged to can't be decoded correctly.
+     */
+    public void onSequenceGap() {
+        sequenceGaps++;
+        if (frame != null || noSlot || overflowed) {
+            damaged = true; // Lost its middle or its end
+        }
+        // If the next packet starts a new access unit, the lost packets may have been its head
+        gapBeforeNextAccessUnit = true;
+        waitUntilResumePoint();
+    }
+
+    /** Appends a complete NAL unit (without start code) to the access unit of the given RTP timestamp. */
+    public void addNalUnit(byte[] data, int offset, int length, long timestamp) {
+        if (length <= 0) return;
+
+        abortFragmentedNalUnit();
+        if (!reserve(timestamp, START_CODE_LENGTH + length)) return;
+        putStartCode();
+        frame.put(data, offset, length);
+        onNalUnit(data[offset]);
+        if ((data[offset] & 0x1F) == NAL_TYPE_SEI && length > 1 && isRecoveryPoint(data, offset + 1, offset + length)) {
+            recoveryPoint = true;
+        }
+    }
+
+    /** Starts reassembling an FU-A fragmented NAL unit, given its reconstructed NAL header. */
+    public void beginFragmentedNalUnit(byte nalHeader, long timestamp) {
+        abortFragmentedNalUnit();
+        if (!reserve(timestamp, START_CODE_LENGTH + 1)) return;
+        fragmentStart = frame.position();
+        putStartCode();
+        frame.put(nalHeader);
+    }
+
+    /** Appends FU-A fragment data; fragments whose start fragment was lost are ignored. */
+    public void appendFragment(byte[] data, int offset, int length, long timestamp, boolean end) {
+        if (fragmentStart < 0 || timestamp != this.timestamp) {
+            if (timestamp != this.timestamp) {
+                reserve(timestamp, 0); // Starts the access unit this fragment belongs to
+            }
+            damaged = true;
+            return;
+        }
+
+        if (!reserve(timestamp, length)) {
+            fragmentStart = -1;
+            return;
+        }
+        frame.put(data, offset, length);
+        if (end) {
+            onNalUnit(frame.get(fragmentStart + START_CODE_LENGTH));
+            fragmentStart = -1;
+        }
+    }
+
+    /**
+     * The packet with the marker bit has been depacketized: the access unit is complete. captureTimeUs is when the
+     * TV captured it, on the local clock, or -1 if unknown.
+     */
+    public void endAccessUnit(long captureTimeUs) {
+        this.captureTimeUs = captureTimeUs;
+        finish();
+    }
+
+    // Makes sure the access unit of this timestamp has a slot with room for the given number of bytes
+    private boolean reserve(long timestamp, int length) {
+        if (timestamp != this.timestamp) {
+            if (frame != null || noSlot || overflowed) {
+                incompleteAccessUnits++; // Marker packet never made it
+                finish();
+            }
+            damaged = gapBeforeNextAccessUnit;
+            this.timestamp = timestamp;
+        }
+        gapBeforeNextAccessUnit = false; // Any gap so far was before this packet, inside this access unit
+        if (noSlot || overflowed) return false;
+
+        if (frame == null) {
+            frame = frameQueue.acquire();
+            if (frame == null) {
+                noSlot = true; // Dropped as a whole when it ends
+                return false;
+            }
+        }
+        if (frame.remaining() < length) {
+            overflowed = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void putStartCode() {
+        frame.put((byte) 0);
+        frame.put((byte) 0);
+        frame.put((byte) 0);
+        frame.put((byte) 1);
+    }
+
+    private void onNalUnit(byte header) {
+        int nalType = header & 0x1F;
+        if (nalType >= 1 && nalType <= NAL_TYPE_IDR) {
+            hasSlices = true;
+            keyFrame |= nalType == NAL_TYPE_IDR;
+        } else if (nalType == NAL_TYPE_SPS || nalType == NAL_TYPE_PPS) {
+            hasParameterSets = true;
+        }
+    }
+
+    // Whether the first SEI message is a recovery point (H.264 D.1), which lets decoding restart without an IDR
+    private static boolean isRecoveryPoint(byte[] data, int offset, int end) {
+        int payloadType = 0;
+        while (offset < end && data[offset] == (byte) 0xFF) {
+            payloadType += 255;
+            offset++;
+        }
+        return offset < end && payloadType + (data[offset] & 0xFF) == SEI_RECOVERY_POINT;
+    }
+
+    private void waitUntilResumePoint() {
+        if (!waitingForResumePoint) {
+            waitingForResumePoint = true;
+            listener.onKeyFrameNeeded();
+        }
+    }
+
+    // Drops the part of a fragmented NAL unit collected so far
+    private void abortFragmentedNalUnit() {
+        if (fragmentStart < 0) return;
+        if (frame != null && !overflowed) {
+            frame.position(fragmentStart);
+        }
+        fragmentStart = -1;
+        incompleteNalUnits++;
+        damaged = true;
+    }
+
+    private void finish() {
+        abortFragmentedNalUnit();
+
+        int flags = 0;
+        if (keyFrame) {
+            flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        } else if (hasParameterSets && !hasSlices) {
+            flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        }
+
+        boolean configOnly = flags == MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        boolean resumePoint = keyFrame || recoveryPoint;
+        if (damaged) {
+            damagedFrames++;
+            waitUntilResumePoint();
+        } else if (waitingForResumePoint && resumePoint) {
+            waitingForResumePoint = false;
+        }
+
+        if (noSlot || overflowed) {
+            frameQueue.drop(flags, overflowed);
+        } else if (frame != null && frame.position() > 0) {
+            if (damaged) {
+                // Dropped, and everything up to the next resume point with it
+            } else if (waitingForResumePoint && !configOnly) {
+                skippedFrames++;
+            } else if (frameQueue.commit(frame.position(), timestamp, flags, captureTimeUs)) {
+                accessUnits++;
+                listener.onAccessUnitQueued(timestamp, flags, resumePoint);
+            }
+        }
+
+        frame = null;
+        noSlot = false;
+        overflowed = false;
+        hasSlices = false;
+        hasParameterSets = false;
+        keyFrame = false;
+        recoveryPoint = false;
+        damaged = false;
+        captureTimeUs = -1;
+    }
+
+    /** Whether frames are being dropped until the next IDR or recovery point. */
+    public boolean isWaitingForKeyFrame() {
+        return waitingForResumePoint;
+    }
+
+    public long getAccessUnits() {
+        return accessUnits;
+    }
+
+    /** Access units passed on without their marker packet. */
+    public long getIncompleteAccessUnits() {
+        return incompleteAccessUnits;
+    }
+
+    /** FU-A fragmented NAL units cut off because their end fragment never arrived. */
+    public long getIncompleteNalUnits() {
+        return incompleteNalUnits;
+    }
+
+    public long getSequenceGaps() {
+        return sequenceGaps;
+    }
+
+    /** Frames with missing packets, which were dropped. */
+    public long getDamagedFrames() {
+        return damagedFrames;
+    }
+
+    /** Complete frames dropped because an earlier frame they depend on was damaged. */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+}
@@ -0,0 +1,119 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Receives RTP packets through a non-blocking DatagramChannel.
+ * After each wakeup every datagram already queued on the socket is read, up to a batch, into a pool of direct
+ * buffers cut from one preallocated slab, before any of them is processed. The kernel queue is emptied in one go
+ * instead of one packet per wakeup, and nothing is allocated per packet.
+ * A batch that fills the whole pool means the receiver is behind the sender; sequence gaps seen then, and in the
+ * batch after it, are most likely the kernel dropping datagrams on a full socket buffer rather than network loss.
+ */
+public class DatagramChannelReceiveEngine implements RtpReceiveEngine {
+    private static final int BATCH_SIZE = 64;
+    private static final int PACKET_CAPACITY = 2048; // Larger than any RTP packet the TV sends
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final ByteBuffer[] pool = new ByteBuffer[BATCH_SIZE];
+    private boolean backlogged = false;
+    private boolean lastBatchFull = false;
+
+    // Metrics
+    private volatile int maxBatch = 0;
+    private volatile long fullBatches = 0;
+    private volatile long truncatedPackets = 0;
+
+    public DatagramChannelReceiveEngine(int port, int receiveBufferSize) throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(BATCH_SIZE * PACKET_CAPACITY);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            slab.limit((i + 1) * PACKET_CAPACITY);
+            slab.position(i * PACKET_CAPACITY);
+            pool[i] = slab.slice();
+        }
+    }
+
+    @Override
+    public int receive(PacketHandler handler, int timeoutMs) throws IOException {
+        int count = drain();
+        if (count == 0) {
+            selector.select(timeoutMs);
+            selector.selectedKeys().clear();
+            count = drain();
+        }
+
+        boolean fullBatch = count == BATCH_SIZE;
+        if (fullBatch) {
+            fullBatches++;
+        }
+        // Datagrams the kernel dropped while the queue was full are only missed in the batch after the full one
+        backlogged = fullBatch || lastBatchFull;
+        lastBatchFull = fullBatch;
+        if (count > maxBatch) {
+            maxBatch = count;
+        }
+
+        for (int i = 0; i < count; i++) {
+            pool[i].flip();
+            handler.onPacket(pool[i]);
+        }
+        return count;
+    }
+
+    // Reads queued datagrams into the pool until the socket is empty or the pool is full
+    private int drain() throws IOException {
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            ByteBuffer buffer = pool[count];
+            buffer.clear();
+            if (channel.receive(buffer) == null) {
+                break;
+            }
+            if (!buffer.hasRemaining()) {
+                truncatedPackets++; // Didn't fit, the rest was discarded
+                continue;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isBacklogged() {
+        return backlogged;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    /** Wakeups that drained a full batch with more still queued. */
+    public long getFullBatches() {
+        return fullBatches;
+    }
+
+    public long getTruncatedPackets() {
+        return truncatedPackets;
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.wakeup();
+        channel.close();
+        selector.close();
+    }
+}
@@ -0,0 +1,54 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives RTP packets with a blocking DatagramSocket into a heap buffer, one datagram per wakeup.
+ * Kept as a fallback for DatagramChannelReceiveEngine; it can't tell whether the socket is backed up.
+ */
+public class DatagramSocketReceiveEngine implements RtpReceiveEngine {
+    private static final int MAX_PACKET_SIZE = 65536;
+
+    private final DatagramSocket socket;
+    private final byte[] buffer = new byte[MAX_PACKET_SIZE];
+    private final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    private final ByteBuffer view = ByteBuffer.wrap(buffer);
+    private int timeoutMs = -1;
+
+    public DatagramSocketReceiveEngine(int port, int receiveBufferSize) throws IOException {
+        socket = new DatagramSocket(port);
+        socket.setReceiveBufferSize(receiveBufferSize);
+    }
+
+    @Override
+    public int receive(PacketHandler handler, int timeoutMs) throws IOException {
+        if (timeoutMs != this.timeoutMs) {
+            socket.setSoTimeout(timeoutMs);
+            this.timeoutMs = timeoutMs;
+        }
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+            return 0;
+        }
+
+        view.limit(packet.getLength());
+        view.position(0);
+        handler.onPacket(view);
+        return 1;
+    }
+
+    @Override
+    public boolean isBacklogged() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
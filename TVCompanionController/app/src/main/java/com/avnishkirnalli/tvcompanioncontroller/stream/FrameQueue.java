@@ -0,0 +1,184 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands assembled access units from the RTP receive thread to the decoder thread.
+ * A single-producer / single-consumer ring over one preallocated direct buffer, cut into fixed size slots. The
+ * receive thread assembles each frame in place in the slot at the tail and publishes it; the decoder thread looks
+ * at the frame at the head and copies it into a codec input buffer. Nothing is allocated per frame, and the
+ * receive thread never waits.
+ * When the decoder falls so far behind that the ring is full, the new frame is dropped, and so is every frame after
+ * it up to the next keyframe, since those would only decode into garbage. A keyframe is requested to end the gap.
+ */
+public class FrameQueue {
+    private static final String TAG = "FrameQueue";
+
+    public interface KeyFrameRequester {
+        void requestKeyFrame();
+    }
+
+    private final int slotCount;
+    private final KeyFrameRequester keyFrameRequester;
+
+    private final ByteBuffer[] slots;
+    private final int[] slotLengths;
+    private final long[] slotTimestamps;
+    private final int[] slotFlags;
+    private final long[] slotCaptureTimesUs;
+    private final long[] slotQueueTimesUs;
+    private volatile long head = 0; // Next frame to decode, advanced by the decoder thread
+    private volatile long tail = 0; // Next slot to fill, advanced by the receive thread
+    private boolean dropUntilKeyFrame = false; // Receive thread only
+
+    // Metrics
+    private volatile int maxDepth = 0;
+    private volatile long droppedFrames = 0;
+    private volatile long oversizedFrames = 0;
+
+    /**
+     * @param slotCount ring size, a power of two
+     * @param slotCapacity largest frame that can be queued
+     */
+    public FrameQueue(int slotCount, int slotCapacity, KeyFrameRequester keyFrameRequester) {
+        this.slotCount = slotCount;
+        this.keyFrameRequester = keyFrameRequester;
+
+        slots = new ByteBuffer[slotCount];
+        slotLengths = new int[slotCount];
+        slotTimestamps = new long[slotCount];
+        slotFlags = new int[slotCount];
+        slotCaptureTimesUs = new long[slotCount];
+        slotQueueTimesUs = new long[slotCount];
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(slotCount * slotCapacity);
+        for (int i = 0; i < slotCount; i++) {
+            slab.limit((i + 1) * slotCapacity);
+            slab.position(i * slotCapacity);
+            slots[i] = slab.slice();
+        }
+    }
+
+    /**
+     * Returns the cleared slot for the next frame, or null if the ring is full. Called on the receive thread;
+     * the slot stays with the caller until commit().
+     */
+    public ByteBuffer acquire() {
+        long currentTail = tail;
+        if (currentTail - head >= slotCount) {
+            return null;
+        }
+        ByteBuffer slot = slots[(int) (currentTail & (slotCount - 1))];
+        slot.clear();
+        return slot;
+    }
+
+    /**
+     * Publishes the frame written into the acquired slot, with its capture time on the local clock (-1 if unknown)
+     * for the latency stats. Called on the receive thread; returns false if the frame was dropped because it
+     * follows an earlier drop and isn't a keyframe.
+     */
+    public boolean commit(int length, long timestamp, int flags, long captureTimeUs) {
+        boolean config = (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean keyFrame = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (dropUntilKeyFrame && !config) {
+            if (!keyFrame) {
+                droppedFrames++;
+                return false;
+            }
+            dropUntilKeyFrame = false;
+        }
+
+        long currentTail = tail;
+        int index = (int) (currentTail & (slotCount - 1));
+        slotLengths[index] = length;
+        slotTimestamps[index] = timestamp;
+        slotFlags[index] = flags;
+        slotCaptureTimesUs[index] = captureTimeUs;
+        slotQueueTimesUs[index] = System.nanoTime() / 1000;
+
+        tail = currentTail + 1; // Publish
+        int depth = (int) (currentTail + 1 - head);
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        return true;
+    }
+
+    /** A frame was lost before it could be queued: the ring was full or the frame didn't fit a slot. */
+    public void drop(int flags, boolean oversized) {
+        droppedFrames++;
+        if (oversized) {
+            oversizedFrames++;
+        }
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            Log.e(TAG, "Dropped codec config buffer, the stream can't be decoded until it is sent again");
+            return;
+        }
+        dropUntilKeyFrame = true;
+        keyFrameRequester.requestKeyFrame();
+    }
+
+    /**
+     * Returns the oldest frame, from position 0 to its length, and describes it in info; null if the ring is empty.
+     * Called on the decoder thread; the frame stays queued until remove().
+     */
+    public ByteBuffer peek(MediaCodec.BufferInfo info) {
+        long currentHead = head;
+        if (currentHead == tail) {
+            return null;
+        }
+
+        int index = (int) (currentHead & (slotCount - 1));
+        ByteBuffer slot = slots[index];
+        slot.limit(slotLengths[index]);
+        slot.position(0);
+        info.set(0, slotLengths[index], slotTimestamps[index], slotFlags[index]);
+        return slot;
+    }
+
+    /** Capture time of the oldest frame on the local clock, -1 if unknown. Called on the decoder thread after peek(). */
+    public long getCaptureTimeUs() {
+        return slotCaptureTimesUs[(int) (head & (slotCount - 1))];
+    }
+
+    /** When the oldest frame was queued, in System.nanoTime() microseconds. Called on the decoder thread after peek(). */
+    public long getQueueTimeUs() {
+        return slotQueueTimesUs[(int) (head & (slotCount - 1))];
+    }
+
+    /** Frees the slot of the oldest frame. Called on the decoder thread. */
+    public void remove() {
+        head = head + 1;
+    }
+
+    /** The oldest frame didn't fit a codec input buffer and is dropped. Called on the decoder thread. */
+    public void removeOversized() {
+        oversizedFrames++;
+        remove();
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    public int getDepth() {
+        return (int) (tail - head);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /** Frames dropped because they were larger than a slot or the codec's input buffers. */
+    public long getOversizedFrames() {
+        return oversizedFrames;
+    }
+}
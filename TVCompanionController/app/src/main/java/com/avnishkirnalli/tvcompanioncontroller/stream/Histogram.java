@@ -0,0 +1,75 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket histogram for hot paths. Recording is a bucket scan and a few atomic increments,
+ * with no locking and no allocation, so it can be fed from any thread.
+ */
+public class Histogram {
+    private final long[] upperBounds; // Inclusive, ascending; one extra bucket catches everything above
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(long... upperBounds) {
+        this.upperBounds = upperBounds;
+        this.counts = new AtomicLongArray(upperBounds.length + 1);
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Smallest bucket bound that at least the given fraction of recorded values fall under, e.g. 0.99 for p99,
+     * or the largest value recorded if that is lower.
+     */
+    public long getPercentile(double fraction) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(n * fraction);
+        long seen = 0;
+        for (int i = 0; i < upperBounds.length; i++) {
+            seen += counts.get(i);
+            if (seen >= threshold) {
+                return Math.min(upperBounds[i], max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " mean=" + getMean() + " p50=" + getPercentile(0.5) + " p99="
+                + getPercentile(0.99) + " max=" + getMax();
+    }
+}
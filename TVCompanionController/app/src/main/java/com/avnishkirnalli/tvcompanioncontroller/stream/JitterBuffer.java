@@ -0,0 +1,394 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The receiver's jitter buffer: puts the RTP video stream back in order and repairs losses before depacketization.
+ * Packets are slotted into a preallocated ring by their 16-bit sequence number, so reordering is undone, and
+ * duplicates and packets that arrive after their place was already released are dropped. Packets are released one
+ * complete access unit at a time (up to a packet with the marker bit, with no holes before it).
+ * When a packet is missing, the ones after it are held while the hole is reported to the LossListener for a NACK
+ * and the FEC packet of its group is awaited. A retransmission fills the hole directly; with RFC 5109 XOR FEC a
+ * single loss per group is rebuilt in place. Either way FU-A reassembly never sees the hole.
+ * How long a hole or an unfinished access unit is waited on is the playout delay, which follows the measured
+ * interarrival jitter (RFC 3550 A.8) between a floor and a ceiling. It is counted from when the hole was first seen
+ * (the arrival of the first packet after it), so the holes of one burst all run out together instead of one after
+ * another.
+ */
+public class JitterBuffer {
+    public static final int FEC_PAYLOAD_TYPE = 127;
+
+    public interface PacketListener {
+        void onPacket(byte[] packet, int length);
+    }
+
+    public interface LossListener {
+        /** Packets newly found missing, as a Generic NACK entry: pid plus a bitmask of the 16 following (RFC 4585). */
+        void onPacketsMissing(int pid, int blp);
+
+        /** Packets given up on; the frames they belonged to can't be decoded. */
+        default void onPacketsLost(int count) {}
+    }
+
+    private static final int RTP_HEADER_LENGTH = 12;
+    private static final int FEC_HEADER_LENGTH = 10;
+    private static final int ULP_LEVEL_HEADER_LENGTH = 4;
+    private static final int SLOT_COUNT = 512; // Power of two
+    private static final int SLOT_SIZE = 2048;
+    private static final int JITTER_MULTIPLIER = 4; // Playout delay in units of the measured jitter
+
+    private final PacketListener listener;
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private volatile long playoutDelayMs;
+    private LossListener lossListener;
+
+    private final byte[][] slots = new byte[SLOT_COUNT][SLOT_SIZE];
+    private final int[] slotLengths = new int[SLOT_COUNT];
+    private final int[] slotSeqs = new int[SLOT_COUNT];
+    private final long[] slotArrivalMs = new long[SLOT_COUNT];
+
+    private int nextSeq = -1; // Next sequence number to release
+    private int highestSeq = -1;
+    private int contiguousSeq = -1; // First sequence number after the unbroken run starting at nextSeq
+    private boolean fecSeen = false; // Don't wait on holes until the sender is known to send FEC (or NACKs are on)
+
+    // Stats
+    private volatile int depth = 0; // Packets held back
+    private volatile int maxDepth = 0;
+    private volatile long fecPackets = 0;
+    private volatile long recoveredPackets = 0;
+    private volatile long lostPackets = 0;
+    private volatile long latePackets = 0;
+    private volatile long duplicatePackets = 0;
+
+    public JitterBuffer(PacketListener listener, long minDelayMs, long maxDelayMs) {
+        this.listener = listener;
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.playoutDelayMs = maxDelayMs; // Until the jitter is known
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            slotSeqs[i] = -1;
+        }
+    }
+
+    /** Enables holding packets behind a hole for a retransmission, and reports each hole once when it appears. */
+    public void setLossListener(LossListener lossListener) {
+        this.lossListener = lossListener;
+    }
+
+    /** Adapts the playout delay to the current interarrival jitter. */
+    public void setJitterMs(long jitterMs) {
+        playoutDelayMs = Math.max(minDelayMs, Math.min(maxDelayMs, jitterMs * JITTER_MULTIPLIER));
+    }
+
+    public void onMediaPacket(byte[] data, int length) {
+        onMediaPacket(ByteBuffer.wrap(data, 0, length));
+    }
+
+    /** Takes a media packet between position and limit; it is copied, so the buffer can be reused afterwards. */
+    public void onMediaPacket(ByteBuffer packet) {
+        int length = packet.remaining();
+        if (length < RTP_HEADER_LENGTH || length > SLOT_SIZE) return;
+
+        int seq = packet.getShort(packet.position() + 2) & 0xFFFF;
+        if (nextSeq < 0) {
+            nextSeq = seq;
+            highestSeq = seq;
+            contiguousSeq = seq;
+        }
+
+        int distance = seqDistance(nextSeq, seq);
+        if (distance < 0) {
+            latePackets++; // Already released or given up on
+            return;
+        }
+        if (distance >= SLOT_COUNT) {
+            // Too far ahead to hold: the stream jumped, so flush what is held and start over from here
+            skipTo(seq);
+        }
+
+        int index = seq & (SLOT_COUNT - 1);
+        if (slotSeqs[index] == seq) {
+            duplicatePackets++;
+            return;
+        }
+        packet.get(slots[index], 0, length);
+        slotLengths[index] = length;
+        slotSeqs[index] = seq;
+        slotArrivalMs[index] = nowMs();
+        int jump = seqDistance(highestSeq, seq);
+        if (jump > 1 && lossListener != null) {
+            reportMissing((highestSeq + 1) & 0xFFFF, jump - 1);
+        }
+        if (jump > 0) {
+            highestSeq = seq;
+        }
+
+        drain();
+    }
+
+    public void onFecPacket(byte[] data, int length) {
+        fecSeen = true;
+        fecPackets++;
+        if (nextSeq < 0 || length < RTP_HEADER_LENGTH + FEC_HEADER_LENGTH + ULP_LEVEL_HEADER_LENGTH) return;
+
+        int fecHeader = RTP_HEADER_LENGTH;
+        int snBase = readUnsignedShort(data, fecHeader + 2);
+        int protectionLength = readUnsignedShort(data, fecHeader + 10);
+        int mask = readUnsignedShort(data, fecHeader + 12);
+        int parityOffset = fecHeader + FEC_HEADER_LENGTH + ULP_LEVEL_HEADER_LENGTH;
+        if (parityOffset + protectionLength > length || RTP_HEADER_LENGTH + protectionLength > SLOT_SIZE) return;
+
+        int missing = 0;
+        int missingSeq = -1;
+        boolean coversHole = false;
+        for (int i = 0; i < 16; i++) {
+            if ((mask & (0x8000 >>> i)) == 0) continue;
+            int seq = (snBase + i) & 0xFFFF;
+            if (seq == contiguousSeq) coversHole = true;
+            if (slotSeqs[seq & (SLOT_COUNT - 1)] != seq) {
+                missing++;
+                missingSeq = seq;
+            }
+        }
+
+        if (missing == 1 && seqDistance(nextSeq, missingSeq) >= 0) {
+            if (recover(data, fecHeader, parityOffset, protectionLength, snBase, mask, missingSeq)) {
+                recoveredPackets++;
+                if (seqDistance(highestSeq, missingSeq) > 0) {
+                    highestSeq = missingSeq;
+                }
+                drain();
+            }
+        } else if (missing > 1 && coversHole && hasHole() && lossListener == null) {
+            // The hole we are waiting on can't be repaired by this group and no retransmission is coming
+            giveUp();
+            drain();
+        }
+    }
+
+    /** Gives up on every hole or unfinished access unit held past the playout delay. Call this periodically. */
+    public void checkTimeout() {
+        long now = nowMs();
+        while (nextSeq >= 0 && seqDistance(nextSeq, highestSeq) >= 0 && now - waitStartMs() >= playoutDelayMs) {
+            giveUp();
+            drain();
+        }
+    }
+
+    // When the head started waiting: the earliest arrival after the hole, or of the unfinished access unit if none
+    private long waitStartMs() {
+        int seq = hasHole() ? (contiguousSeq + 1) & 0xFFFF : nextSeq;
+        long start = Long.MAX_VALUE;
+        for (; seqDistance(seq, highestSeq) >= 0; seq = (seq + 1) & 0xFFFF) {
+            int index = seq & (SLOT_COUNT - 1);
+            if (slotSeqs[index] == seq) {
+                start = Math.min(start, slotArrivalMs[index]);
+            }
+        }
+        return start;
+    }
+
+    private boolean recover(byte[] fec, int fecHeader, int parityOffset, int protectionLength,
+                            int snBase, int mask, int missingSeq) {
+        byte[] out = slots[missingSeq & (SLOT_COUNT - 1)];
+
+        int byte0 = fec[fecHeader];
+        int byte1 = fec[fecHeader + 1];
+        int ts = readInt(fec, fecHeader + 4);
+        int protectedLength = readUnsignedShort(fec, fecHeader + 8);
+        System.arraycopy(fec, parityOffset, out, RTP_HEADER_LENGTH, protectionLength);
+
+        byte[] ssrcSource = null;
+        for (int i = 0; i < 16; i++) {
+            if ((mask & (0x8000 >>> i)) == 0) continue;
+            int seq = (snBase + i) & 0xFFFF;
+            if (seq == missingSeq) continue;
+            int index = seq & (SLOT_COUNT - 1);
+            byte[] packet = slots[index];
+            int packetProtectedLength = slotLengths[index] - RTP_HEADER_LENGTH;
+
+            byte0 ^= packet[0];
+            byte1 ^= packet[1];
+            ts ^= readInt(packet, 4);
+            protectedLength ^= packetProtectedLength;
+            int xorLength = Math.min(packetProtectedLength, protectionLength);
+            for (int j = RTP_HEADER_LENGTH; j < RTP_HEADER_LENGTH + xorLength; j++) {
+                out[j] ^= packet[j];
+            }
+            ssrcSource = packet;
+        }
+
+        protectedLength &= 0xFFFF;
+        if (ssrcSource == null || protectedLength > protectionLength) {
+            return false;
+        }
+
+        out[0] = (byte) (0x80 | (byte0 & 0x3F)); // V=2 plus recovered P, X, CC
+        out[1] = (byte) byte1;
+        out[2] = (byte) (missingSeq >> 8);
+        out[3] = (byte) missingSeq;
+        out[4] = (byte) (ts >> 24);
+        out[5] = (byte) (ts >> 16);
+        out[6] = (byte) (ts >> 8);
+        out[7] = (byte) ts;
+        System.arraycopy(ssrcSource, 8, out, 8, 4);
+
+        int index = missingSeq & (SLOT_COUNT - 1);
+        slotLengths[index] = RTP_HEADER_LENGTH + protectedLength;
+        slotSeqs[index] = missingSeq;
+        slotArrivalMs[index] = nowMs();
+        return true;
+    }
+
+    private void drain() {
+        while (true) {
+            // Extend the unbroken run, then release it up to its last access unit boundary.
+            // Whatever was already in the run has no marker, or it would have been released.
+            int releaseEnd = -1;
+            int scanFrom = contiguousSeq;
+            int index = contiguousSeq & (SLOT_COUNT - 1);
+            while (seqDistance(contiguousSeq, highestSeq) >= 0 && slotSeqs[index] == contiguousSeq) {
+                contiguousSeq = (contiguousSeq + 1) & 0xFFFF;
+                index = contiguousSeq & (SLOT_COUNT - 1);
+            }
+            for (int seq = scanFrom; seq != contiguousSeq; seq = (seq + 1) & 0xFFFF) {
+                if ((slots[seq & (SLOT_COUNT - 1)][1] & 0x80) != 0) {
+                    releaseEnd = seq; // Marker bit: last packet of an access unit
+                }
+            }
+            if (releaseEnd >= 0) {
+                releaseUpTo((releaseEnd + 1) & 0xFFFF);
+            }
+
+            int held = seqDistance(nextSeq, highestSeq) + 1;
+            depth = Math.max(held, 0);
+            if (held > maxDepth) {
+                maxDepth = held;
+            }
+            if (held <= 0) {
+                return; // Nothing held back
+            }
+            if (!hasHole() || fecSeen || lossListener != null) {
+                return; // Wait for the rest of the access unit, or for a retransmission / FEC to fill the hole
+            }
+            giveUp();
+        }
+    }
+
+    private boolean hasHole() {
+        return seqDistance(contiguousSeq, highestSeq) >= 0;
+    }
+
+    private void releaseUpTo(int endSeq) {
+        while (nextSeq != endSeq) {
+            int index = nextSeq & (SLOT_COUNT - 1);
+            listener.onPacket(slots[index], slotLengths[index]);
+            nextSeq = (nextSeq + 1) & 0xFFFF;
+        }
+    }
+
+    // Releases the unfinished access unit at the head and skips the hole after it
+    private void giveUp() {
+        releaseUpTo(contiguousSeq);
+        int lost = 0;
+        while (seqDistance(nextSeq, highestSeq) >= 0 && slotSeqs[nextSeq & (SLOT_COUNT - 1)] != nextSeq) {
+            lost++;
+            nextSeq = (nextSeq + 1) & 0xFFFF;
+        }
+        contiguousSeq = nextSeq;
+        onLost(lost);
+    }
+
+    private void reportMissing(int firstSeq, int count) {
+        // One NACK entry covers the pid and the 16 sequence numbers after it
+        int offset = 0;
+        while (offset < count) {
+            int pid = (firstSeq + offset) & 0xFFFF;
+            int blp = 0;
+            int following = Math.min(16, count - offset - 1);
+            for (int i = 0; i < following; i++) {
+                blp |= 1 << i;
+            }
+            lossListener.onPacketsMissing(pid, blp);
+            offset += following + 1;
+        }
+    }
+
+    private void skipTo(int seq) {
+        int lost = 0;
+        while (seqDistance(nextSeq, highestSeq) >= 0) {
+            int index = nextSeq & (SLOT_COUNT - 1);
+            if (slotSeqs[index] == nextSeq) {
+                listener.onPacket(slots[index], slotLengths[index]);
+            } else {
+                lost++;
+            }
+            nextSeq = (nextSeq + 1) & 0xFFFF;
+        }
+        nextSeq = seq;
+        highestSeq = seq;
+        contiguousSeq = seq;
+        onLost(lost);
+    }
+
+    private void onLost(int count) {
+        if (count == 0) return;
+        lostPackets += count;
+        if (lossListener != null) {
+            lossListener.onPacketsLost(count);
+        }
+    }
+
+    /** Packets currently held back, waiting for the rest of their access unit or for a hole to be filled. */
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getPlayoutDelayMs() {
+        return playoutDelayMs;
+    }
+
+    public long getFecPackets() {
+        return fecPackets;
+    }
+
+    public long getRecoveredPackets() {
+        return recoveredPackets;
+    }
+
+    public long getLostPackets() {
+        return lostPackets;
+    }
+
+    /** Packets that arrived after their place in the stream had already been released or given up on. */
+    public long getLatePackets() {
+        return latePackets;
+    }
+
+    public long getDuplicatePackets() {
+        return duplicatePackets;
+    }
+
+    private static int seqDistance(int from, int to) {
+        return (short) (to - from);
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1_000_000L;
+    }
+}
@@ -0,0 +1,167 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+/**
+ * How long the mirrored picture takes from the TV's screen to the phone's, split up by stage:
+ * encode (capture until the TV's encoder output the frame, as stamped by the TV), network (from there until the
+ * frame's last packet came off the socket, including the TV's send queue and pacer), jitter buffer (until the frame
+ * was depacketized into the decode queue), decode (until the codec output the picture) and render (until it was
+ * on the Surface), plus end to end from capture to render. All values are in microseconds.
+ * Capture times are on the TV's clock. Stages that span both devices need the offset between the clocks, which
+ * comes from the control socket, and are only recorded once it is known.
+ * Per-frame state is kept in small rings matched by RTP timestamp, which is also the presentation time the decoder
+ * sees: arrivals on the receive thread, frames inside the codec on the decoder thread.
+ */
+public class LatencyStats {
+    private static final long UNKNOWN = Long.MIN_VALUE;
+    private static final long[] BOUNDS_US = {1000, 2000, 5000, 10000, 20000, 35000, 50000, 75000, 100000, 150000,
+            200000, 300000, 500000};
+    private static final int ARRIVAL_SLOTS = 32; // Frames between the socket and the depacketizer, power of two
+    private static final int DECODE_SLOTS = 16; // Frames inside the codec, power of two
+
+    private final Histogram encodeUs = new Histogram(BOUNDS_US);
+    private final Histogram networkUs = new Histogram(BOUNDS_US);
+    private final Histogram jitterBufferUs = new Histogram(BOUNDS_US);
+    private final Histogram decodeUs = new Histogram(BOUNDS_US);
+    private final Histogram renderUs = new Histogram(BOUNDS_US);
+    private final Histogram endToEndUs = new Histogram(BOUNDS_US);
+
+    private volatile long clockOffsetUs = UNKNOWN; // TV clock minus the local one
+
+    // Receive thread: when the last packet of each frame came off the socket
+    private final long[] arrivalTimestamps = new long[ARRIVAL_SLOTS];
+    private final long[] arrivalTimesUs = new long[ARRIVAL_SLOTS];
+    private int arrivalIndex = 0;
+
+    // Decoder thread: frames handed to the codec
+    private final long[] decodeTimestamps = new long[DECODE_SLOTS];
+    private final long[] decodeQueueTimesUs = new long[DECODE_SLOTS];
+    private final long[] decodeCaptureTimesUs = new long[DECODE_SLOTS];
+    private final long[] decodeOutputTimesUs = new long[DECODE_SLOTS];
+    private int decodeIndex = 0;
+
+    public LatencyStats() {
+        for (int i = 0; i < ARRIVAL_SLOTS; i++) {
+            arrivalTimestamps[i] = -1;
+        }
+        for (int i = 0; i < DECODE_SLOTS; i++) {
+            decodeTimestamps[i] = -1;
+        }
+    }
+
+    /** Sets the TV's clock minus the local one; both are System.nanoTime() in microseconds. */
+    public void setClockOffsetUs(long clockOffsetUs) {
+        this.clockOffsetUs = clockOffsetUs;
+    }
+
+    public boolean hasClockOffset() {
+        return clockOffsetUs != UNKNOWN;
+    }
+
+    /** The last packet of a frame came off the socket. Called on the receive thread. */
+    public void onFrameArrived(long timestamp, long arrivalUs) {
+        arrivalTimestamps[arrivalIndex] = timestamp;
+        arrivalTimesUs[arrivalIndex] = arrivalUs;
+        arrivalIndex = (arrivalIndex + 1) & (ARRIVAL_SLOTS - 1);
+    }
+
+    /**
+     * A frame carrying the TV's capture and encode times was depacketized. Called on the receive thread.
+     * Returns the capture time on the local clock, or -1 while the clock offset isn't known.
+     */
+    public long onFrameDepacketized(long timestamp, long captureTimeUs, long encodeTimeUs, long nowUs) {
+        encodeUs.record(encodeTimeUs);
+
+        long arrivalUs = -1;
+        for (int i = 0; i < ARRIVAL_SLOTS; i++) {
+            if (arrivalTimestamps[i] == timestamp) {
+                arrivalUs = arrivalTimesUs[i];
+                break;
+            }
+        }
+        if (arrivalUs >= 0) {
+            jitterBufferUs.record(nowUs - arrivalUs);
+        }
+
+        long offsetUs = clockOffsetUs;
+        if (offsetUs == UNKNOWN) {
+            return -1;
+        }
+        long localCaptureTimeUs = captureTimeUs - offsetUs;
+        if (arrivalUs >= 0) {
+            // Can come out slightly negative on a fast link, within the error of the offset
+            networkUs.record(Math.max(0, arrivalUs - localCaptureTimeUs - encodeTimeUs));
+        }
+        return localCaptureTimeUs;
+    }
+
+    /**
+     * A frame was queued to the codec. queueTimeUs is when it entered the decode queue, captureTimeUs its capture
+     * time on the local clock or -1. Called on the decoder thread.
+     */
+    public void onFrameDecoding(long timestamp, long queueTimeUs, long captureTimeUs) {
+        decodeTimestamps[decodeIndex] = timestamp;
+        decodeQueueTimesUs[decodeIndex] = queueTimeUs;
+        decodeCaptureTimesUs[decodeIndex] = captureTimeUs;
+        decodeOutputTimesUs[decodeIndex] = -1;
+        decodeIndex = (decodeIndex + 1) & (DECODE_SLOTS - 1);
+    }
+
+    /** The codec output the frame with this presentation time. Called on the decoder thread. */
+    public void onFrameDecoded(long timestamp, long nowUs) {
+        int index = findDecoding(timestamp);
+        if (index < 0) return;
+        decodeUs.record(nowUs - decodeQueueTimesUs[index]);
+        decodeOutputTimesUs[index] = nowUs;
+    }
+
+    /** The frame with this presentation time reached the Surface. Called on the decoder thread. */
+    public void onFrameRendered(long timestamp, long renderTimeUs) {
+        int index = findDecoding(timestamp);
+        if (index < 0 || decodeOutputTimesUs[index] < 0) return;
+        renderUs.record(Math.max(0, renderTimeUs - decodeOutputTimesUs[index]));
+        if (decodeCaptureTimesUs[index] >= 0) {
+            endToEndUs.record(renderTimeUs - decodeCaptureTimesUs[index]);
+        }
+        decodeTimestamps[index] = -1; // Done with it
+    }
+
+    private int findDecoding(long timestamp) {
+        for (int i = 0; i < DECODE_SLOTS; i++) {
+            if (decodeTimestamps[i] == timestamp) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Histogram getEncodeUs() {
+        return encodeUs;
+    }
+
+    public Histogram getNetworkUs() {
+        return networkUs;
+    }
+
+    public Histogram getJitterBufferUs() {
+        return jitterBufferUs;
+    }
+
+    public Histogram getDecodeUs() {
+        return decodeUs;
+    }
+
+    public Histogram getRenderUs() {
+        return renderUs;
+    }
+
+    /** Capture on the TV until the picture was rendered on the phone. */
+    public Histogram getEndToEndUs() {
+        return endToEndUs;
+    }
+
+    @Override
+    public String toString() {
+        return "encode [" + encodeUs + "], network [" + networkUs + "], jitter buffer [" + jitterBufferUs
+                + "], decode [" + decodeUs + "], render [" + renderUs + "], end to end [" + endToEndUs + "]";
+    }
+}
@@ -0,0 +1,101 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Finds the NAL units of an H.264 Annex B byte stream and records them as offset/length pairs into the scanned
+ * buffer, without copying anything.
+ * The scan reads eight bytes at a time and only looks at individual bytes when the word contains a zero byte,
+ * since every start code (00 00 01, optionally preceded by another 00) does. Emulation prevention guarantees
+ * 00 00 0x (x <= 2) never occurs inside a NAL unit, so 00 00 01 is always a start code. Zero bytes in front of a
+ * start code (the extra zero of a 4-byte start code, or trailing_zero_8bits) are not counted as NAL data.
+ */
+public class NalUnitIndex {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private int count = 0;
+
+    /**
+     * Indexes the NAL units between start and end. If the range has no start code at all it is taken to be
+     * a single NAL unit. Returns the number of NAL units found.
+     */
+    public int scan(ByteBuffer data, int start, int end) {
+        count = 0;
+        int nalStart = -1;
+        int i = start;
+
+        while (i + 2 < end) {
+            if (i + 8 <= end) {
+                long word = data.getLong(i);
+                if (((word - ONES) & ~word & HIGHS) == 0) {
+                    // No zero byte, so no start code can begin anywhere in these eight bytes
+                    i += 8;
+                    continue;
+                }
+            }
+
+            int wordEnd = Math.min(i + 8, end - 2);
+            int startCode = -1;
+            for (int p = i; p < wordEnd; p++) {
+                if (data.get(p) == 0 && data.get(p + 1) == 0 && data.get(p + 2) == 1) {
+                    startCode = p;
+                    break;
+                }
+            }
+            if (startCode < 0) {
+                i = wordEnd;
+                continue;
+            }
+
+            if (nalStart >= 0) {
+                add(nalStart, trimTrailingZeros(data, nalStart, startCode));
+            }
+            nalStart = startCode + 3;
+            i = nalStart;
+        }
+
+        if (nalStart >= 0) {
+            add(nalStart, trimTrailingZeros(data, nalStart, end));
+        } else if (end > start) {
+            add(start, end);
+        }
+        return count;
+    }
+
+    private static int trimTrailingZeros(ByteBuffer data, int nalStart, int nalEnd) {
+        while (nalEnd > nalStart && data.get(nalEnd - 1) == 0) {
+            nalEnd--;
+        }
+        return nalEnd;
+    }
+
+    private void add(int nalStart, int nalEnd) {
+        if (nalEnd == nalStart) {
+            return;
+        }
+
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        offsets[count] = nalStart;
+        lengths[count] = nalEnd - nalStart;
+        count++;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+}
@@ -0,0 +1,182 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+/**
+ * Decides when each decoded frame is rendered, so the picture stays close to live instead of playing back a
+ * backlog after a stall.
+ * Every frame gets a render deadline: its capture time plus a playout delay. The capture time is the one the TV
+ * stamps on the frame, on the local clock, once the clocks are synced; before that it is the RTP timestamp, whose
+ * offset to the local clock is unknown. The playout delay is the target latency budget, or the lowest delay frames
+ * made it out of the decoder with over the last couple of seconds if that is more, so a budget the pipeline can't
+ * meet never turns into dropping everything. With RTP timestamps only the budget can't be measured against, and the
+ * lowest delay (plus a little slack) is used alone.
+ * Frames ahead of their deadline are released for exactly that time, which evens out decoding jitter. Frames a
+ * little late are rendered at once. Frames far behind are dropped as long as a newer frame is already on its way,
+ * so after congestion the display skips straight to the newest frame. Dropping only skips rendering; every frame
+ * is still decoded, so references stay intact.
+ * Used on the decoder thread only.
+ */
+public class PlayoutScheduler {
+    public static final long DROP = -1;
+
+    private static final int CLOCK_RATE = 90000;
+    private static final long RTP_SLACK_NS = 10_000_000L; // Playout delay on top of the lowest, RTP timestamps only
+    private static final long MAX_RENDER_AHEAD_NS = 500_000_000L; // The platform only holds frames for about 1s
+    private static final long RESET_DELAY_JUMP_NS = 5_000_000_000L; // Timestamps jumped: the TV restarted
+    private static final long WINDOW_BUCKET_NS = 250_000_000L;
+    private static final int WINDOW_BUCKETS = 8; // Lowest delay over the last two seconds
+    private static final int FRAME_SLOTS = 16; // Frames inside the codec, power of two
+
+    private final long targetLatencyNs;
+    private final long dropLatenessNs;
+
+    // Frames handed to the codec, oldest overwritten
+    private final long[] frameTimestamps = new long[FRAME_SLOTS];
+    private final long[] frameCaptureTimesUs = new long[FRAME_SLOTS];
+    private final long[] frameSequence = new long[FRAME_SLOTS];
+    private long queuedFrames = 0;
+
+    // Lowest capture-to-output delay, per bucket of a sliding window
+    private final long[] bucketMinDelayNs = new long[WINDOW_BUCKETS];
+    private int bucket = 0;
+    private long bucketStartNs = 0;
+    private boolean captureClock = false; // Whether the window holds capture time delays rather than RTP ones
+
+    // RTP timestamp unwrapping
+    private long lastTimestamp = -1;
+    private long timestampCycles = 0;
+
+    // Metrics
+    private volatile long playoutDelayNs = -1;
+    private volatile long scheduledFrames = 0;
+    private volatile long lateFrames = 0;
+    private volatile long droppedFrames = 0;
+
+    /**
+     * @param targetLatencyMs capture to render latency to aim for
+     * @param dropLatenessMs how far past its deadline a frame may be and still be rendered
+     */
+    public PlayoutScheduler(long targetLatencyMs, long dropLatenessMs) {
+        this.targetLatencyNs = targetLatencyMs * 1_000_000L;
+        this.dropLatenessNs = dropLatenessMs * 1_000_000L;
+        for (int i = 0; i < FRAME_SLOTS; i++) {
+            frameTimestamps[i] = -1;
+        }
+        resetWindow(System.nanoTime());
+    }
+
+    /** A frame was queued to the codec, with its capture time on the local clock or -1 if unknown. */
+    public void onFrameQueued(long timestamp, long captureTimeUs) {
+        int index = (int) (queuedFrames & (FRAME_SLOTS - 1));
+        frameTimestamps[index] = timestamp;
+        frameCaptureTimesUs[index] = captureTimeUs;
+        frameSequence[index] = queuedFrames;
+        queuedFrames++;
+    }
+
+    /**
+     * Returns when to render the decoded frame with this RTP timestamp, in System.nanoTime() nanoseconds for
+     * releaseOutputBuffer(index, renderTimestampNs), or DROP. moreFramesQueued says whether frames are waiting
+     * to go into the codec.
+     */
+    public long schedule(long timestamp, long nowNs, boolean moreFramesQueued) {
+        long captureTimeUs = -1;
+        boolean newerFrame = moreFramesQueued;
+        for (int i = 0; i < FRAME_SLOTS; i++) {
+            if (frameTimestamps[i] == timestamp) {
+                captureTimeUs = frameCaptureTimesUs[i];
+                newerFrame |= frameSequence[i] < queuedFrames - 1;
+                break;
+            }
+        }
+
+        boolean useCaptureTime = captureTimeUs >= 0;
+        long captureNs = useCaptureTime ? captureTimeUs * 1000 : unwrap(timestamp) * 1_000_000 / CLOCK_RATE * 1000;
+        long delayNs = nowNs - captureNs;
+        long lowestDelayNs = lowestDelay(nowNs);
+        if (useCaptureTime != captureClock || (lowestDelayNs != Long.MAX_VALUE
+                && Math.abs(delayNs - lowestDelayNs) > RESET_DELAY_JUMP_NS)) {
+            captureClock = useCaptureTime;
+            resetWindow(nowNs);
+        }
+        addDelay(delayNs, nowNs);
+        lowestDelayNs = lowestDelay(nowNs);
+
+        long delay = useCaptureTime ? Math.max(targetLatencyNs, lowestDelayNs) : lowestDelayNs + RTP_SLACK_NS;
+        playoutDelayNs = useCaptureTime ? delay : -1;
+        long deadlineNs = captureNs + delay;
+
+        if (deadlineNs >= nowNs) {
+            scheduledFrames++;
+            return Math.min(deadlineNs, nowNs + MAX_RENDER_AHEAD_NS);
+        }
+        if (nowNs - deadlineNs > dropLatenessNs && newerFrame) {
+            droppedFrames++;
+            return DROP;
+        }
+        lateFrames++;
+        return nowNs;
+    }
+
+    private long unwrap(long timestamp) {
+        if (lastTimestamp >= 0 && timestamp < lastTimestamp && lastTimestamp - timestamp > 0x80000000L) {
+            timestampCycles += 1L << 32;
+        }
+        lastTimestamp = timestamp;
+        return timestampCycles + timestamp;
+    }
+
+    private void addDelay(long delayNs, long nowNs) {
+        advanceWindow(nowNs);
+        if (delayNs < bucketMinDelayNs[bucket]) {
+            bucketMinDelayNs[bucket] = delayNs;
+        }
+    }
+
+    private long lowestDelay(long nowNs) {
+        advanceWindow(nowNs);
+        long lowest = Long.MAX_VALUE;
+        for (long bucketMin : bucketMinDelayNs) {
+            lowest = Math.min(lowest, bucketMin);
+        }
+        return lowest;
+    }
+
+    private void advanceWindow(long nowNs) {
+        for (int i = 0; i < WINDOW_BUCKETS && nowNs - bucketStartNs >= WINDOW_BUCKET_NS; i++) {
+            bucket = (bucket + 1) % WINDOW_BUCKETS;
+            bucketMinDelayNs[bucket] = Long.MAX_VALUE;
+            bucketStartNs += WINDOW_BUCKET_NS;
+        }
+        if (nowNs - bucketStartNs >= WINDOW_BUCKET_NS) {
+            bucketStartNs = nowNs; // Idle for longer than the window
+        }
+    }
+
+    private void resetWindow(long nowNs) {
+        for (int i = 0; i < WINDOW_BUCKETS; i++) {
+            bucketMinDelayNs[i] = Long.MAX_VALUE;
+        }
+        bucketStartNs = nowNs;
+    }
+
+    /** Capture to render delay frames are currently scheduled for, -1 while only RTP timestamps are known. */
+    public long getPlayoutDelayMs() {
+        long delayNs = playoutDelayNs;
+        return delayNs < 0 ? -1 : delayNs / 1_000_000;
+    }
+
+    /** Frames released ahead of time, to be rendered on their deadline. */
+    public long getScheduledFrames() {
+        return scheduledFrames;
+    }
+
+    /** Frames past their deadline that were still rendered, straight away. */
+    public long getLateFrames() {
+        return lateFrames;
+    }
+
+    /** Frames too far behind to be worth showing, skipped in favour of a newer one. */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -0,0 +1,149 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+/**
+ * Per-stream reception statistics that feed the RTCP reports sent back to the TV.
+ * Sequence tracking, loss and interarrival jitter follow RFC 3550 A.1, A.3 and A.8; as there, a jump in sequence
+ * numbers only restarts the count once a second packet continues from it. On top of that the delay gradient is
+ * accumulated per frame: how much later each frame arrived than its RTP timestamp says it should have, relative to
+ * the frame before. A positive sum over a report interval means a queue is building on the path.
+ * Only packets as they arrive from the network are counted, so retransmissions and FEC repairs don't hide loss.
+ * Not thread safe; updated and read on the RTP receive thread.
+ */
+public class ReceiverStatistics {
+    private static final int CLOCK_RATE = 90000;
+    private static final int RTP_SEQ_MOD = 1 << 16;
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+
+    private boolean initialized = false;
+    private int baseSeq;
+    private int maxSeq;
+    private int badSeq = -1; // After a large jump, the sequence number that confirms the sender restarted
+    private long cycles = 0;
+    private long received = 0;
+    private long expectedPrior = 0;
+    private long receivedPrior = 0;
+
+    // Interarrival jitter, in RTP timestamp units scaled by 16 (RFC 3550 A.8). Transit times are kept in 32 bits like
+    // the timestamps they come from, so their differences stay right when the timestamp wraps
+    private int lastTransit = 0;
+    private long scaledJitter = 0;
+
+    // Delay gradient, tracked on the last packet of each frame
+    private long frameTimestamp = -1;
+    private long frameArrivalUs = 0;
+    private long previousFrameTimestamp = -1;
+    private long previousFrameArrivalUs = 0;
+    private long delayGradientUs = 0;
+
+    // Values of the last prepareReport()
+    private int fractionLost = 0;
+    private long cumulativeLost = 0;
+    private long reportDelayGradientUs = 0;
+
+    public void onPacket(int seq, long timestamp, long arrivalUs) {
+        if (!initialized) {
+            initialized = true;
+            baseSeq = seq;
+            maxSeq = seq;
+        } else {
+            int delta = (seq - maxSeq) & 0xFFFF;
+            if (delta < MAX_DROPOUT) {
+                if (seq < maxSeq) {
+                    cycles += RTP_SEQ_MOD; // Wrapped
+                }
+                maxSeq = seq;
+            } else if (delta <= RTP_SEQ_MOD - MAX_MISORDER) {
+                if (seq != badSeq) {
+                    // A stray packet or a restarted sender; only the next packet in sequence after it tells
+                    badSeq = (seq + 1) & 0xFFFF;
+                    return;
+                }
+                // The sender restarted its sequence numbers; start counting over
+                baseSeq = seq;
+                maxSeq = seq;
+                cycles = 0;
+                received = 0;
+                expectedPrior = 0;
+                receivedPrior = 0;
+            }
+            // Otherwise a duplicate or reordered packet, which only counts as received
+        }
+        received++;
+
+        long arrival = arrivalUs * CLOCK_RATE / 1_000_000;
+        int transit = (int) (arrival - timestamp);
+        if (received > 1) {
+            int d = Math.abs(transit - lastTransit);
+            scaledJitter += d - ((scaledJitter + 8) >> 4);
+        }
+        lastTransit = transit;
+
+        updateDelayGradient(timestamp, arrivalUs);
+    }
+
+    private void updateDelayGradient(long timestamp, long arrivalUs) {
+        if (frameTimestamp < 0 || timestamp == frameTimestamp) {
+            frameTimestamp = timestamp;
+            frameArrivalUs = arrivalUs;
+            return;
+        }
+        if ((int) (timestamp - frameTimestamp) < 0) {
+            return; // Late packet of an older frame
+        }
+
+        // The current frame is complete; compare it with the one before
+        if (previousFrameTimestamp >= 0) {
+            long interArrivalUs = frameArrivalUs - previousFrameArrivalUs;
+            long interDepartureUs = ((frameTimestamp - previousFrameTimestamp) & 0xFFFFFFFFL) * 1_000_000 / CLOCK_RATE;
+            delayGradientUs += interArrivalUs - interDepartureUs;
+        }
+        previousFrameTimestamp = frameTimestamp;
+        previousFrameArrivalUs = frameArrivalUs;
+        frameTimestamp = timestamp;
+        frameArrivalUs = arrivalUs;
+    }
+
+    /** Closes the current report interval and computes the values reported for it. */
+    public void prepareReport() {
+        long expected = getExtendedHighestSeq() - baseSeq + 1;
+        cumulativeLost = Math.max(0, expected - received);
+
+        long expectedInterval = expected - expectedPrior;
+        long receivedInterval = received - receivedPrior;
+        long lostInterval = expectedInterval - receivedInterval;
+        expectedPrior = expected;
+        receivedPrior = received;
+        fractionLost = (expectedInterval == 0 || lostInterval <= 0) ? 0 : (int) ((lostInterval << 8) / expectedInterval);
+
+        reportDelayGradientUs = delayGradientUs;
+        delayGradientUs = 0;
+    }
+
+    public boolean hasData() {
+        return initialized;
+    }
+
+    public long getExtendedHighestSeq() {
+        return cycles + maxSeq;
+    }
+
+    /** Fraction of packets lost in the last report interval, in 1/256 units. */
+    public int getFractionLost() {
+        return fractionLost;
+    }
+
+    public long getCumulativeLost() {
+        return cumulativeLost;
+    }
+
+    /** Interarrival jitter in RTP timestamp units. */
+    public long getJitter() {
+        return scaledJitter >> 4;
+    }
+
+    /** Sum of the per-frame delay gradients over the last report interval, in microseconds. */
+    public long getDelayGradientUs() {
+        return reportDelayGradientUs;
+    }
+}
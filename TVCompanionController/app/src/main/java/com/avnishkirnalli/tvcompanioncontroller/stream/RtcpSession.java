@@ -0,0 +1,276 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Controller side of RTCP (RFC 3550) for the video stream.
+ * Listens on the RTCP port for the TV's Sender Reports and sends feedback back to the address they came from,
+ * so no extra port has to be known on the TV. Receiver Reports echo the last Sender Report (LSR) and how long ago
+ * it arrived (DLSR), from which the TV works out the round trip time.
+ */
+public class RtcpSession {
+    private static final String TAG = "RtcpSession";
+
+    private static final int RTCP_VERSION = 2;
+    private static final int PT_SR = 200;
+    private static final int PT_RR = 201;
+    private static final int PT_SDES = 202;
+    private static final int PT_APP = 204;
+    private static final int PT_RTPFB = 205;
+    private static final int PT_PSFB = 206;
+    private static final int FMT_GENERIC_NACK = 1;
+    private static final int FMT_PLI = 1;
+    private static final int FMT_FIR = 4;
+    private static final int MAX_PACKET_SIZE = 1500;
+    private static final int SDES_CNAME = 1;
+    private static final byte[] CNAME = "tvcompanioncontroller".getBytes(StandardCharsets.US_ASCII);
+
+    // Application-defined packets: delay gradient for the TV's bitrate controller, path MTU probes and their acks
+    public static final int APP_SUBTYPE_DELAY_GRADIENT = 0;
+    public static final int APP_SUBTYPE_MTU_PROBE = 1;
+    public static final int APP_SUBTYPE_MTU_PROBE_ACK = 2;
+    public static final byte[] APP_NAME = "TVCF".getBytes(StandardCharsets.US_ASCII);
+
+    private final DatagramSocket socket;
+    private final long ssrc;
+    private final Thread receiveThread;
+    private volatile boolean running = true;
+
+    // Where the TV sends its reports from; feedback goes back there
+    private volatile SocketAddress senderAddress;
+
+    private final byte[] sendBuffer = new byte[MAX_PACKET_SIZE];
+    private final ByteBuffer sendView = ByteBuffer.wrap(sendBuffer);
+    private final DatagramPacket sendPacket = new DatagramPacket(sendBuffer, sendBuffer.length);
+    private int firSequenceNumber = 0;
+
+    // Last Sender Report, for LSR/DLSR; guarded by this
+    private long lastSrNtp = 0; // Middle 32 bits of its NTP timestamp
+    private long lastSrArrivalNs = 0;
+
+    // Stats
+    private volatile long senderReports = 0;
+
+    public RtcpSession(int port) throws IOException {
+        socket = new DatagramSocket(port);
+        ssrc = new Random().nextLong() & 0xFFFFFFFFL;
+        receiveThread = new Thread(this::receiveLoop, "RtcpSession");
+        receiveThread.start();
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (running) {
+            try {
+                socket.receive(packet);
+                processCompoundPacket(buffer, packet.getLength(), packet.getSocketAddress());
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "RTCP socket error", e);
+                }
+            }
+        }
+    }
+
+    private void processCompoundPacket(byte[] data, int length, SocketAddress from) {
+        int offset = 0;
+        while (offset + 4 <= length) {
+            int version = (data[offset] >> 6) & 0x03;
+            int format = data[offset] & 0x1F;
+            int packetType = data[offset + 1] & 0xFF;
+            int packetLength = ((((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF)) + 1) * 4;
+            if (version != RTCP_VERSION || offset + packetLength > length) {
+                return;
+            }
+
+            if (packetType == PT_SR && packetLength >= 28) {
+                senderAddress = from;
+                onSenderReport(readInt(data, offset + 8), readInt(data, offset + 12));
+            } else if (packetType == PT_APP && format == APP_SUBTYPE_MTU_PROBE && packetLength >= 16
+                    && hasName(data, offset + 8, APP_NAME)) {
+                // The probe made it through unfragmented; tell the TV how big it was
+                sendMtuProbeAck(readInt(data, offset + 12), length, from);
+            }
+
+            offset += packetLength;
+        }
+    }
+
+    private synchronized void onSenderReport(int ntpSeconds, int ntpFraction) {
+        lastSrNtp = ((ntpSeconds & 0xFFFFL) << 16) | ((ntpFraction >>> 16) & 0xFFFFL);
+        lastSrArrivalNs = System.nanoTime();
+        senderReports++;
+    }
+
+    public long getSenderReports() {
+        return senderReports;
+    }
+
+    /** Sends a Generic NACK (RFC 4585 6.2.1) for pid and the packets flagged in blp. */
+    public synchronized void sendNack(long mediaSsrc, int pid, int blp) {
+        SocketAddress destination = senderAddress;
+        if (destination == null) {
+            return; // No Sender Report yet, so nowhere to send feedback to
+        }
+
+        sendView.clear();
+        sendView.put((byte) ((RTCP_VERSION << 6) | FMT_GENERIC_NACK));
+        sendView.put((byte) PT_RTPFB);
+        sendView.putShort((short) 3); // Length in 32-bit words minus one
+        sendView.putInt((int) ssrc);
+        sendView.putInt((int) mediaSsrc);
+        sendView.putShort((short) pid);
+        sendView.putShort((short) blp);
+        send(destination);
+    }
+
+    private synchronized void sendMtuProbeAck(int probeId, int size, SocketAddress destination) {
+        sendView.clear();
+        sendView.put((byte) ((RTCP_VERSION << 6) | APP_SUBTYPE_MTU_PROBE_ACK));
+        sendView.put((byte) PT_APP);
+        sendView.putShort((short) 4);
+        sendView.putInt((int) ssrc);
+        sendView.put(APP_NAME);
+        sendView.putInt(probeId);
+        sendView.putInt(size);
+        send(destination);
+    }
+
+    private static boolean hasName(byte[] data, int offset, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (data[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    /** Sends a Picture Loss Indication (RFC 4585 6.3.1): the picture is broken, please send a keyframe. */
+    public synchronized void sendPli(long mediaSsrc) {
+        SocketAddress destination = senderAddress;
+        if (destination == null) {
+            return;
+        }
+
+        sendView.clear();
+        sendView.put((byte) ((RTCP_VERSION << 6) | FMT_PLI));
+        sendView.put((byte) PT_PSFB);
+        sendView.putShort((short) 2);
+        sendView.putInt((int) ssrc);
+        sendView.putInt((int) mediaSsrc);
+        send(destination);
+    }
+
+    /** Sends a Full Intra Request (RFC 5104 4.3.1), used when the decoder has to start over from scratch. */
+    public synchronized void sendFir(long mediaSsrc) {
+        SocketAddress destination = senderAddress;
+        if (destination == null) {
+            return;
+        }
+
+        sendView.clear();
+        sendView.put((byte) ((RTCP_VERSION << 6) | FMT_FIR));
+        sendView.put((byte) PT_PSFB);
+        sendView.putShort((short) 4);
+        sendView.putInt((int) ssrc);
+        sendView.putInt(0); // Media source SSRC is unused, the FCI names it
+        sendView.putInt((int) mediaSsrc);
+        sendView.put((byte) firSequenceNumber);
+        sendView.put((byte) 0);
+        sendView.putShort((short) 0);
+        firSequenceNumber = (firSequenceNumber + 1) & 0xFF;
+        send(destination);
+    }
+
+    /**
+     * Sends a compound Receiver Report (RFC 3550 6.4.2) + SDES CNAME + delay gradient APP packet for the last
+     * intervalMs. The caller is expected to have called stats.prepareReport() first.
+     */
+    public synchronized void sendReceiverReport(long mediaSsrc, ReceiverStatistics stats, long intervalMs) {
+        SocketAddress destination = senderAddress;
+        if (destination == null) {
+            return;
+        }
+
+        sendView.clear();
+
+        // --- Receiver Report with one report block ---
+        sendView.put((byte) ((RTCP_VERSION << 6) | 1)); // RC=1
+        sendView.put((byte) PT_RR);
+        sendView.putShort((short) 7);
+        sendView.putInt((int) ssrc);
+        sendView.putInt((int) mediaSsrc);
+        long cumulativeLost = Math.min(stats.getCumulativeLost(), 0x7FFFFF);
+        sendView.putInt((stats.getFractionLost() << 24) | (int) cumulativeLost);
+        sendView.putInt((int) stats.getExtendedHighestSeq());
+        sendView.putInt((int) stats.getJitter());
+        long delaySinceLastSr = 0;
+        if (lastSrArrivalNs != 0) {
+            // In 1/65536 seconds
+            delaySinceLastSr = ((System.nanoTime() - lastSrArrivalNs) << 16) / 1_000_000_000L;
+        }
+        sendView.putInt((int) lastSrNtp); // LSR, 0 until a Sender Report arrived
+        sendView.putInt((int) delaySinceLastSr); // DLSR
+
+        // --- SDES with CNAME ---
+        int sdesStart = sendView.position();
+        sendView.put((byte) ((RTCP_VERSION << 6) | 1)); // SC=1
+        sendView.put((byte) PT_SDES);
+        sendView.putShort((short) 0); // Length, filled in below
+        sendView.putInt((int) ssrc);
+        sendView.put((byte) SDES_CNAME);
+        sendView.put((byte) CNAME.length);
+        sendView.put(CNAME);
+        sendView.put((byte) 0); // END item
+        while ((sendView.position() - sdesStart) % 4 != 0) {
+            sendView.put((byte) 0);
+        }
+        sendView.putShort(sdesStart + 2, (short) ((sendView.position() - sdesStart) / 4 - 1));
+
+        // --- APP: delay gradient (microseconds, signed) | interval (milliseconds) ---
+        sendView.put((byte) ((RTCP_VERSION << 6) | APP_SUBTYPE_DELAY_GRADIENT));
+        sendView.put((byte) PT_APP);
+        sendView.putShort((short) 4);
+        sendView.putInt((int) ssrc);
+        sendView.put(APP_NAME);
+        sendView.putInt((int) stats.getDelayGradientUs());
+        sendView.putInt((int) intervalMs);
+
+        send(destination);
+    }
+
+    private void send(SocketAddress destination) {
+        sendPacket.setData(sendBuffer, 0, sendView.position());
+        sendPacket.setSocketAddress(destination);
+        try {
+            socket.send(sendPacket);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to send RTCP feedback", e);
+        }
+    }
+
+    public void close() {
+        running = false;
+        socket.close();
+        try {
+            receiveThread.join(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport the RTPReceiver reads RTP datagrams from.
+ * Each receive() waits up to the timeout for traffic and then hands over what is queued on the socket, one
+ * datagram per PacketHandler call, from position 0 to limit. The buffer is reused once the handler returns.
+ * Called on the RTP receive thread only; close() may be called from another thread to end a pending receive.
+ */
+public interface RtpReceiveEngine extends Closeable {
+    interface PacketHandler {
+        void onPacket(ByteBuffer packet);
+    }
+
+    /** Returns the number of datagrams handed over, 0 if the timeout expired. */
+    int receive(PacketHandler handler, int timeoutMs) throws IOException;
+
+    /**
+     * Whether the receiver is running behind and the kernel buffer may be overflowing, so sequence gaps in the
+     * datagrams being handed over are more likely socket drops than network loss. Android doesn't expose the
+     * socket's drop counter, so this is a heuristic: true during a receive() that stopped at a full batch with
+     * more datagrams likely still queued, and during the receive() after it. The datagrams dropped while the queue
+     * was full are missing from that next batch, which usually isn't full itself.
+     */
+    boolean isBacklogged();
+}
@@ -0,0 +1,258 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The fields of an H.264 sequence parameter set (ITU-T H.264 7.3.2.1.1) the decoder has to be configured with:
+ * profile and level, the picture size after frame cropping, and the frame rate from the VUI timing info.
+ * The SPS is read from its RBSP, i.e. with emulation prevention bytes (00 00 03) skipped, using exp-Golomb
+ * decoding for the ue(v)/se(v) fields. Everything after the VUI timing info is ignored.
+ */
+public class SequenceParameterSet {
+    private int profileIdc;
+    private int constraintFlags;
+    private int levelIdc;
+    private int width;
+    private int height;
+    private float frameRate = 0; // 0 if the SPS carries no timing info
+
+    private SequenceParameterSet() {
+    }
+
+    /** Parses an SPS NAL unit, starting at its NAL header. Returns null if it is malformed or truncated. */
+    public static SequenceParameterSet parse(ByteBuffer data, int offset, int length) {
+        BitReader reader = new BitReader(data, offset + 1, offset + length); // Skip the NAL header
+        try {
+            return parse(reader);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static SequenceParameterSet parse(BitReader reader) {
+        SequenceParameterSet sps = new SequenceParameterSet();
+        sps.profileIdc = reader.readBits(8);
+        sps.constraintFlags = reader.readBits(8);
+        sps.levelIdc = reader.readBits(8);
+        reader.readUnsignedExpGolomb(); // seq_parameter_set_id
+
+        int chromaFormatIdc = 1;
+        boolean separateColourPlane = false;
+        if (hasChromaInfo(sps.profileIdc)) {
+            chromaFormatIdc = reader.readUnsignedExpGolomb();
+            if (chromaFormatIdc == 3) {
+                separateColourPlane = reader.readBit();
+            }
+            reader.readUnsignedExpGolomb(); // bit_depth_luma_minus8
+            reader.readUnsignedExpGolomb(); // bit_depth_chroma_minus8
+            reader.readBit(); // qpprime_y_zero_transform_bypass_flag
+            if (reader.readBit()) { // seq_scaling_matrix_present_flag
+                int lists = chromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < lists; i++) {
+                    if (reader.readBit()) {
+                        skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        reader.readUnsignedExpGolomb(); // log2_max_frame_num_minus4
+        int picOrderCntType = reader.readUnsignedExpGolomb();
+        if (picOrderCntType == 0) {
+            reader.readUnsignedExpGolomb(); // log2_max_pic_order_cnt_lsb_minus4
+        } else if (picOrderCntType == 1) {
+            reader.readBit(); // delta_pic_order_always_zero_flag
+            reader.readSignedExpGolomb(); // offset_for_non_ref_pic
+            reader.readSignedExpGolomb(); // offset_for_top_to_bottom_field
+            int cycle = reader.readUnsignedExpGolomb();
+            for (int i = 0; i < cycle; i++) {
+                reader.readSignedExpGolomb(); // offset_for_ref_frame
+            }
+        }
+        reader.readUnsignedExpGolomb(); // max_num_ref_frames
+        reader.readBit(); // gaps_in_frame_num_value_allowed_flag
+
+        int widthInMbs = reader.readUnsignedExpGolomb() + 1;
+        int heightInMapUnits = reader.readUnsignedExpGolomb() + 1;
+        boolean frameMbsOnly = reader.readBit();
+        if (!frameMbsOnly) {
+            reader.readBit(); // mb_adaptive_frame_field_flag
+        }
+        reader.readBit(); // direct_8x8_inference_flag
+
+        int width = widthInMbs * 16;
+        int height = (frameMbsOnly ? 1 : 2) * heightInMapUnits * 16;
+        if (reader.readBit()) { // frame_cropping_flag
+            int left = reader.readUnsignedExpGolomb();
+            int right = reader.readUnsignedExpGolomb();
+            int top = reader.readUnsignedExpGolomb();
+            int bottom = reader.readUnsignedExpGolomb();
+
+            // Crop offsets are in chroma sample units (Table 6-1), or luma samples without chroma
+            int cropUnitX = 1;
+            int cropUnitY = frameMbsOnly ? 1 : 2;
+            if (chromaFormatIdc != 0 && !separateColourPlane) {
+                cropUnitX *= chromaFormatIdc == 3 ? 1 : 2;
+                cropUnitY *= chromaFormatIdc == 1 ? 2 : 1;
+            }
+            width -= cropUnitX * (left + right);
+            height -= cropUnitY * (top + bottom);
+        }
+        sps.width = width;
+        sps.height = height;
+
+        if (reader.readBit()) { // vui_parameters_present_flag
+            parseVuiTiming(reader, sps);
+        }
+        return sps;
+    }
+
+    private static boolean hasChromaInfo(int profileIdc) {
+        switch (profileIdc) {
+            case 100: case 110: case 122: case 244: case 44: case 83: case 86: case 118: case 128: case 138:
+            case 139: case 134: case 135:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void skipScalingList(BitReader reader, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int i = 0; i < size && nextScale != 0; i++) {
+            nextScale = (lastScale + reader.readSignedExpGolomb() + 256) % 256;
+            lastScale = nextScale == 0 ? lastScale : nextScale;
+        }
+    }
+
+    // VUI up to timing_info (Annex E.1.1)
+    private static void parseVuiTiming(BitReader reader, SequenceParameterSet sps) {
+        if (reader.readBit()) { // aspect_ratio_info_present_flag
+            int aspectRatioIdc = reader.readBits(8);
+            if (aspectRatioIdc == 255) { // Extended_SAR
+                reader.readBits(16); // sar_width
+                reader.readBits(16); // sar_height
+            }
+        }
+        if (reader.readBit()) { // overscan_info_present_flag
+            reader.readBit(); // overscan_appropriate_flag
+        }
+        if (reader.readBit()) { // video_signal_type_present_flag
+            reader.readBits(4); // video_format, video_full_range_flag
+            if (reader.readBit()) { // colour_description_present_flag
+                reader.readBits(24); // colour_primaries, transfer_characteristics, matrix_coefficients
+            }
+        }
+        if (reader.readBit()) { // chroma_loc_info_present_flag
+            reader.readUnsignedExpGolomb();
+            reader.readUnsignedExpGolomb();
+        }
+        if (reader.readBit()) { // timing_info_present_flag
+            long numUnitsInTick = ((long) reader.readBits(16) << 16) | reader.readBits(16);
+            long timeScale = ((long) reader.readBits(16) << 16) | reader.readBits(16);
+            if (numUnitsInTick > 0) {
+                sps.frameRate = timeScale / (2f * numUnitsInTick); // Two ticks per frame
+            }
+        }
+    }
+
+    public int getProfileIdc() {
+        return profileIdc;
+    }
+
+    /** constraint_set0_flag to constraint_set5_flag, from the most significant bit down. */
+    public int getConstraintFlags() {
+        return constraintFlags;
+    }
+
+    public int getLevelIdc() {
+        return levelIdc;
+    }
+
+    /** Displayed width, after frame cropping. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Displayed height, after frame cropping. */
+    public int getHeight() {
+        return height;
+    }
+
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + ", profile " + profileIdc + ", level " + levelIdc / 10f
+                + (frameRate > 0 ? ", " + frameRate + " fps" : "");
+    }
+
+    // Reads an RBSP bit by bit, dropping the emulation prevention bytes of the NAL unit
+    private static class BitReader {
+        private final ByteBuffer data;
+        private final int end;
+        private int position;
+        private int zeros = 0; // Zero bytes just read, to spot 00 00 03
+        private int currentByte;
+        private int bitsLeft = 0;
+
+        BitReader(ByteBuffer data, int start, int end) {
+            this.data = data;
+            this.position = start;
+            this.end = end;
+        }
+
+        boolean readBit() {
+            if (bitsLeft == 0) {
+                nextByte();
+            }
+            bitsLeft--;
+            return ((currentByte >> bitsLeft) & 1) != 0;
+        }
+
+        int readBits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+
+        int readUnsignedExpGolomb() {
+            int leadingZeros = 0;
+            while (!readBit()) {
+                leadingZeros++;
+                if (leadingZeros > 31) {
+                    throw new IndexOutOfBoundsException("Invalid exp-Golomb code");
+                }
+            }
+            return (int) ((1L << leadingZeros) - 1 + readBits(leadingZeros));
+        }
+
+        int readSignedExpGolomb() {
+            int codeNum = readUnsignedExpGolomb();
+            return (codeNum & 1) != 0 ? (codeNum + 1) / 2 : -(codeNum / 2);
+        }
+
+        private void nextByte() {
+            if (position >= end) {
+                throw new IndexOutOfBoundsException("SPS truncated");
+            }
+            int value = data.get(position++) & 0xFF;
+            if (zeros >= 2 && value == 3) {
+                // Emulation prevention byte
+                zeros = 0;
+                if (position >= end) {
+                    throw new IndexOutOfBoundsException("SPS truncated");
+                }
+                value = data.get(position++) & 0xFF;
+            }
+            zeros = value == 0 ? zeros + 1 : 0;
+            currentByte = value;
+            bitsLeft = 8;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The H.264 decoder, run in MediaCodec's asynchronous mode on its own thread and fed from a FrameQueue.
+ * The codec is configured from the stream itself: the SPS and PPS the TV sends in front of every keyframe give the
+ * picture size (and csd-0/csd-1), so the decoder is set up for the TV's real resolution before the first IDR is
+ * decoded. When a keyframe carries a different SPS, e.g. because the TV's display mode changed, the codec is
+ * stopped and configured again before that keyframe is queued, so no frame is decoded with the wrong parameters.
+ * Frames that arrive before the first SPS can't be decoded and are dropped, and a keyframe is asked for. So are
+ * frames too large for the codec's input buffers, along with the frames after them up to the next keyframe.
+ * After a codec error that isn't transient, the codec is stopped (or reset, if the error can't be recovered from)
+ * and configured again from the next keyframe.
+ * Decoded frames get a render deadline from the PlayoutScheduler, or are skipped when they are too late to be worth
+ * showing; the VsyncRenderer then releases them on the vsync closest to that deadline.
+ * Decode and render times of every frame go into the LatencyStats.
+ */
+public class VideoDecoder {
+    private static final String TAG = "VideoDecoder";
+    private static final int NAL_TYPE_IDR = 5;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    public interface KeyFrameRequester {
+        /** Called on the decoder thread when decoding can't go on without a keyframe. */
+        void requestKeyFrame();
+    }
+
+    private final Surface surface;
+    private final FrameQueue frameQueue;
+    private final int maxInputSize;
+    private final KeyFrameRequester keyFrameRequester;
+    private final LatencyStats latencyStats;
+    private final PlayoutScheduler playoutScheduler;
+    private final MediaCodec codec;
+    private final VsyncRenderer renderer;
+    private final HandlerThread decoderThread;
+    private final Handler decoderHandler;
+    private final MediaCodec.Callback callback;
+
+    // Decoder thread only
+    private final ArrayDeque<Integer> freeInputBuffers = new ArrayDeque<>();
+    private final NalUnitIndex nalUnits = new NalUnitIndex();
+    private final MediaCodec.BufferInfo frameInfo = new MediaCodec.BufferInfo();
+    private final Runnable queueInputTask = this::queueInputBuffers;
+    private boolean configured = false;
+    private boolean released = false;
+    private byte[] currentSps = null;
+    private boolean skipUntilKeyFrame = false; // A frame was too large for the codec; its dependents are useless
+
+    // Metrics
+    private volatile int width = 0;
+    private volatile int height = 0;
+    private volatile long configurations = 0;
+    private volatile long framesBeforeConfiguration = 0;
+    private volatile long framesAfterOversized = 0;
+    private volatile long codecResets = 0;
+
+    public VideoDecoder(Surface surface, FrameQueue frameQueue, int maxInputSize, KeyFrameRequester keyFrameRequester,
+                        LatencyStats latencyStats, PlayoutScheduler playoutScheduler) throws IOException {
+        this.surface = surface;
+        this.frameQueue = frameQueue;
+        this.maxInputSize = maxInputSize;
+        this.keyFrameRequester = keyFrameRequester;
+        this.latencyStats = latencyStats;
+        this.playoutScheduler = playoutScheduler;
+
+        codec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        renderer = new VsyncRenderer(codec);
+        decoderThread = new HandlerThread("VideoDecoder");
+        decoderThread.start();
+        decoderHandler = new Handler(decoderThread.getLooper());
+
+        callback = new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                freeInputBuffers.add(index);
+                queueInputBuffers();
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+                long nowNs = System.nanoTime();
+                latencyStats.onFrameDecoded(info.presentationTimeUs, nowNs / 1000);
+                long renderTimeNs = playoutScheduler.schedule(info.presentationTimeUs, nowNs, !frameQueue.isEmpty());
+                if (renderTimeNs == PlayoutScheduler.DROP) {
+                    codec.releaseOutputBuffer(index, false);
+                } else {
+                    renderer.onFrameDecoded(index, info.presentationTimeUs, renderTimeNs);
+                }
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                onCodecError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+                Log.i(TAG, "MediaCodec output format changed: " + format);
+            }
+        };
+        codec.setOnFrameRenderedListener((renderedCodec, presentationTimeUs, nanoTime) ->
+                latencyStats.onFrameRendered(presentationTimeUs, nanoTime / 1000), decoderHandler);
+    }
+
+    /** A frame was added to the queue. Called on the receive thread. */
+    public void onFrameQueued() {
+        decoderHandler.post(queueInputTask);
+    }
+
+    // Pairs queued frames with free codec input buffers
+    private void queueInputBuffers() {
+        if (released) return;
+
+        while (true) {
+            if (configured && freeInputBuffers.isEmpty()) {
+                return;
+            }
+            ByteBuffer frame = frameQueue.peek(frameInfo);
+            if (frame == null) {
+                return;
+            }
+
+            boolean keyFrame = (frameInfo.flags & (MediaCodec.BUFFER_FLAG_KEY_FRAME
+                    | MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) != 0;
+            if (keyFrame && configureFromParameterSets(frame)) {
+                return; // Restarted; the frame is queued once the new input buffers show up
+            }
+            if (!configured) {
+                framesBeforeConfiguration++;
+                frameQueue.remove();
+                keyFrameRequester.requestKeyFrame();
+                continue;
+            }
+            if (skipUntilKeyFrame && (frameInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                if ((frameInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                    framesAfterOversized++;
+                    frameQueue.remove();
+                    continue;
+                }
+                skipUntilKeyFrame = false;
+            }
+
+            int index = freeInputBuffers.peek();
+            try {
+                ByteBuffer inputBuffer = codec.getInputBuffer(index);
+                if (inputBuffer == null) {
+                    freeInputBuffers.poll();
+                    continue;
+                }
+                inputBuffer.clear();
+                if (inputBuffer.remaining() < frameInfo.size) {
+                    Log.w(TAG, "Input buffer too small for access unit of " + frameInfo.size + " bytes, skipped it");
+                    frameQueue.removeOversized();
+                    // The frames after it reference the missing picture and would only decode into garbage
+                    skipUntilKeyFrame = true;
+                    keyFrameRequester.requestKeyFrame();
+                    continue; // The input buffer is still free
+                }
+                inputBuffer.put(frame);
+                freeInputBuffers.poll();
+                if ((frameInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    latencyStats.onFrameDecoding(frameInfo.presentationTimeUs, frameQueue.getQueueTimeUs(),
+                            frameQueue.getCaptureTimeUs());
+                    playoutScheduler.onFrameQueued(frameInfo.presentationTimeUs, frameQueue.getCaptureTimeUs());
+                }
+                frameQueue.remove();
+                codec.queueInputBuffer(index, 0, frameInfo.size, frameInfo.presentationTimeUs, frameInfo.flags);
+            } catch (MediaCodec.CodecException e) {
+                onCodecError(e);
+                return;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Decoder in invalid state", e);
+                freeInputBuffers.clear();
+                keyFrameRequester.requestKeyFrame();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A transient error is left to clear by itself. Otherwise the codec can't be used as it is: it is stopped if the
+     * error is recoverable and reset if not, and configured again from the next keyframe's SPS.
+     */
+    private void onCodecError(MediaCodec.CodecException e) {
+        Log.e(TAG, "MediaCodec error: " + e.getMessage() + " (" + e.getDiagnosticInfo() + "), "
+                + (e.isTransient() ? "transient" : e.isRecoverable() ? "recoverable" : "fatal"));
+        if (e.isTransient() || released) {
+            return;
+        }
+
+        renderer.clear(); // Output buffers are gone with the codec's state
+        freeInputBuffers.clear();
+        try {
+            if (e.isRecoverable()) {
+                codec.stop();
+            } else {
+                codec.reset();
+            }
+        } catch (IllegalStateException resetError) {
+            Log.e(TAG, "Failed to reset decoder", resetError);
+        }
+        configured = false;
+        currentSps = null;
+        codecResets++;
+        keyFrameRequester.requestKeyFrame();
+    }
+
+    /**
+     * Looks for the SPS and PPS in front of a keyframe and (re)configures the codec if the SPS is new.
+     * Returns true if the codec was restarted.
+     */
+    private boolean configureFromParameterSets(ByteBuffer frame) {
+        int spsOffset = -1;
+        int spsLength = 0;
+        int ppsOffset = -1;
+        int ppsLength = 0;
+
+        // Parameter sets come before the first slice
+        int nalCount = nalUnits.scan(frame, frame.position(), frame.limit());
+        for (int i = 0; i < nalCount; i++) {
+            int nalType = frame.get(nalUnits.getOffset(i)) & 0x1F;
+            if (nalType >= 1 && nalType <= NAL_TYPE_IDR) {
+                break;
+            }
+            if (nalType == NAL_TYPE_SPS && spsOffset < 0) {
+                spsOffset = nalUnits.getOffset(i);
+                spsLength = nalUnits.getLength(i);
+            } else if (nalType == NAL_TYPE_PPS && ppsOffset < 0) {
+                ppsOffset = nalUnits.getOffset(i);
+                ppsLength = nalUnits.getLength(i);
+            }
+        }
+        if (spsOffset < 0 || ppsOffset < 0) {
+            return false;
+        }
+
+        byte[] sps = new byte[spsLength];
+        for (int i = 0; i < spsLength; i++) {
+            sps[i] = frame.get(spsOffset + i);
+        }
+        if (Arrays.equals(sps, currentSps)) {
+            return false;
+        }
+
+        SequenceParameterSet parsed = SequenceParameterSet.parse(frame, spsOffset, spsLength);
+        if (parsed == null || parsed.getWidth() <= 0 || parsed.getHeight() <= 0) {
+            Log.e(TAG, "Malformed SPS, keeping the current decoder configuration");
+            return false;
+        }
+        byte[] pps = new byte[ppsLength];
+        for (int i = 0; i < ppsLength; i++) {
+            pps[i] = frame.get(ppsOffset + i);
+        }
+
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+                parsed.getWidth(), parsed.getHeight());
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxInputSize);
+        format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+        format.setByteBuffer("csd-0", withStartCode(sps));
+        format.setByteBuffer("csd-1", withStartCode(pps));
+        if (parsed.getFrameRate() > 0) {
+            format.setFloat(MediaFormat.KEY_FRAME_RATE, parsed.getFrameRate());
+        }
+
+        try {
+            if (configured) {
+                renderer.clear();
+                codec.stop();
+                freeInputBuffers.clear();
+            }
+            codec.setCallback(callback, decoderHandler);
+            codec.configure(format, surface, null, 0);
+            codec.start();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to configure decoder", e);
+            configured = false;
+            currentSps = null;
+            return false;
+        }
+
+        configured = true;
+        currentSps = sps;
+        width = parsed.getWidth();
+        height = parsed.getHeight();
+        configurations++;
+        Log.i(TAG, "Decoder configured for " + parsed);
+        return true;
+    }
+
+    private static ByteBuffer withStartCode(byte[] nalUnit) {
+        ByteBuffer buffer = ByteBuffer.allocate(START_CODE.length + nalUnit.length);
+        buffer.put(START_CODE);
+        buffer.put(nalUnit);
+        buffer.flip();
+        return buffer;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** How often the codec was configured; more than once means the stream changed resolution. */
+    public long getConfigurations() {
+        return configurations;
+    }
+
+    public VsyncRenderer getRenderer() {
+        return renderer;
+    }
+
+    /** Frames dropped because no SPS had been seen yet. */
+    public long getFramesBeforeConfiguration() {
+        return framesBeforeConfiguration;
+    }
+
+    /** Frames dropped because an earlier frame they depend on was too large for the codec. */
+    public long getFramesAfterOversized() {
+        return framesAfterOversized;
+    }
+
+    /** How often the codec was stopped or reset after an error. */
+    public long getCodecResets() {
+        return codecResets;
+    }
+
+    /** Stops and releases the codec on its own thread, then ends the thread. */
+    public void release() {
+        decoderHandler.post(() -> {
+            released = true;
+            renderer.stop();
+            try {
+                if (configured) {
+                    codec.stop();
+                }
+                codec.release();
+            } catch (Exception e) {
+                Log.e(TAG, "Error releasing decoder", e);
+            }
+        });
+        decoderThread.quitSafely();
+        try {
+            decoderThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import android.media.MediaCodec;
+import android.view.Choreographer;
+
+/**
+ * Releases decoded frames to the Surface in step with the display's vsync, so a 30 fps stream on a 60/90/120 Hz
+ * screen shows every frame for the same number of refreshes instead of juddering.
+ * Decoded output buffers are held back with the deadline the PlayoutScheduler gave them. On every Choreographer
+ * frame callback the renderer looks at the vsync a buffer released now can still make, picks the newest held frame
+ * due by then (the closest vsync to its deadline), releases it with a render timestamp aimed at that vsync and drops
+ * the older ones it supersedes. Frames due later stay held for a later vsync.
+ * The vsync period is learned from the callbacks. Pacing jitter is how far the spacing of rendered frames is off the
+ * spacing of their RTP timestamps.
+ * The callbacks stop after MAX_IDLE_VSYNCS in a row with nothing held, so a paused or idle stream doesn't wake the
+ * decoder thread every vsync; a running stream keeps them going, which the vsync period measurement needs.
+ * Runs on the decoder thread, whose Looper the Choreographer callbacks are delivered on.
+ */
+public class VsyncRenderer implements Choreographer.FrameCallback {
+    private static final int CLOCK_RATE = 90000;
+    private static final long DEFAULT_VSYNC_PERIOD_NS = 16_666_667L; // 60 Hz until measured
+    private static final long MIN_VSYNC_PERIOD_NS = 4_000_000L; // 250 Hz
+    private static final float PERIOD_SMOOTHING = 0.1f;
+    // Codec output buffers are few; holding more than this would stall the decoder
+    private static final int MAX_HELD_FRAMES = 4;
+    // Longer than the gap between frames at any stream rate over 15 fps on displays up to 120 Hz
+    private static final int MAX_IDLE_VSYNCS = 8;
+
+    private final MediaCodec codec;
+    private Choreographer choreographer;
+    private boolean running = false;
+    private int idleVsyncs = 0;
+
+    // Held output buffers, oldest first
+    private final int[] heldIndexes = new int[MAX_HELD_FRAMES];
+    private final long[] heldTimestamps = new long[MAX_HELD_FRAMES];
+    private final long[] heldDeadlinesNs = new long[MAX_HELD_FRAMES];
+    private int heldCount = 0;
+
+    private long lastFrameTimeNs = 0;
+    private long lastRenderedVsyncNs = -1;
+    private long lastRenderedTimestamp = -1;
+
+    // Metrics
+    private volatile long vsyncPeriodNs = DEFAULT_VSYNC_PERIOD_NS;
+    private volatile long renderedFrames = 0;
+    private volatile long supersededFrames = 0;
+    private volatile long repeatedVsyncs = 0; // Vsyncs that kept showing the previous frame
+    private final Histogram pacingJitterUs = new Histogram(500, 1000, 2000, 4000, 8000, 12000, 17000, 25000, 34000,
+            50000, 100000);
+
+    public VsyncRenderer(MediaCodec codec) {
+        this.codec = codec;
+    }
+
+    /** Holds a decoded output buffer until the vsync closest to deadlineNs (System.nanoTime()). */
+    public void onFrameDecoded(int index, long timestamp, long deadlineNs) {
+        if (heldCount == MAX_HELD_FRAMES) {
+            codec.releaseOutputBuffer(heldIndexes[0], false);
+            supersededFrames++;
+            removeHeld(1);
+        }
+        heldIndexes[heldCount] = index;
+        heldTimestamps[heldCount] = timestamp;
+        heldDeadlinesNs[heldCount] = deadlineNs;
+        heldCount++;
+
+        if (!running) {
+            if (choreographer == null) {
+                choreographer = Choreographer.getInstance();
+            }
+            running = true;
+            idleVsyncs = 0;
+            lastFrameTimeNs = 0;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) return;
+        updateVsyncPeriod(frameTimeNanos);
+
+        long periodNs = vsyncPeriodNs;
+        long targetVsyncNs = frameTimeNanos + periodNs; // The earliest vsync a buffer released now can make
+        int chosen = -1;
+        for (int i = 0; i < heldCount; i++) {
+            if (heldDeadlinesNs[i] <= targetVsyncNs + periodNs / 2) {
+                chosen = i;
+            }
+        }
+        if (chosen >= 0) {
+            for (int i = 0; i < chosen; i++) {
+                codec.releaseOutputBuffer(heldIndexes[i], false);
+                supersededFrames++;
+            }
+            // Aimed a little ahead of the vsync, so the compositor latches the buffer for that one and not the next
+            codec.releaseOutputBuffer(heldIndexes[chosen], targetVsyncNs - periodNs * 8 / 10);
+            renderedFrames++;
+            if (lastRenderedVsyncNs >= 0) {
+                // Every vsync since the last rendered frame kept showing it
+                repeatedVsyncs += Math.max(0, (targetVsyncNs - lastRenderedVsyncNs + periodNs / 2) / periodNs - 1);
+            }
+            recordPacing(heldTimestamps[chosen], targetVsyncNs);
+            removeHeld(chosen + 1);
+        }
+
+        idleVsyncs = heldCount > 0 ? 0 : idleVsyncs + 1;
+        if (idleVsyncs < MAX_IDLE_VSYNCS) {
+            choreographer.postFrameCallback(this);
+        } else {
+            running = false; // Restarted by the next onFrameDecoded()
+        }
+    }
+
+    private void updateVsyncPeriod(long frameTimeNanos) {
+        if (lastFrameTimeNs != 0) {
+            long deltaNs = frameTimeNanos - lastFrameTimeNs;
+            long periodNs = vsyncPeriodNs;
+            // Longer gaps are skipped vsyncs, not a slower display
+            if (deltaNs >= MIN_VSYNC_PERIOD_NS && deltaNs < periodNs * 3 / 2) {
+                vsyncPeriodNs = periodNs + (long) (PERIOD_SMOOTHING * (deltaNs - periodNs));
+            }
+        }
+        lastFrameTimeNs = frameTimeNanos;
+    }
+
+    private void recordPacing(long timestamp, long vsyncNs) {
+        if (lastRenderedTimestamp >= 0) {
+            long renderIntervalNs = vsyncNs - lastRenderedVsyncNs;
+            long sourceIntervalNs = ((timestamp - lastRenderedTimestamp) & 0xFFFFFFFFL) * 1_000_000 / CLOCK_RATE * 1000;
+            pacingJitterUs.record(Math.abs(renderIntervalNs - sourceIntervalNs) / 1000);
+        }
+        lastRenderedTimestamp = timestamp;
+        lastRenderedVsyncNs = vsyncNs;
+    }
+
+    private void removeHeld(int count) {
+        for (int i = count; i < heldCount; i++) {
+            heldIndexes[i - count] = heldIndexes[i];
+            heldTimestamps[i - count] = heldTimestamps[i];
+            heldDeadlinesNs[i - count] = heldDeadlinesNs[i];
+        }
+        heldCount -= count;
+    }
+
+    /** Forgets the held buffers without releasing them; called when the codec is stopped, which invalidates them. */
+    public void clear() {
+        heldCount = 0;
+    }
+
+    /** Stops the frame callbacks and forgets the held buffers. */
+    public void stop() {
+        running = false;
+        clear();
+        if (choreographer != null) {
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+    /** Display refresh rate measured from the vsync callbacks. */
+    public float getRefreshRate() {
+        return 1_000_000_000f / vsyncPeriodNs;
+    }
+
+    public long getRenderedFrames() {
+        return renderedFrames;
+    }
+
+    /** Decoded frames dropped because a newer one was due by the same vsync. */
+    public long getSupersededFrames() {
+        return supersededFrames;
+    }
+
+    public long getRepeatedVsyncs() {
+        return repeatedVsyncs;
+    }
+
+    /** How far the spacing of consecutive rendered frames was off the spacing of their timestamps. */
+    public Histogram getPacingJitterUs() {
+        return pacingJitterUs;
+    }
+}
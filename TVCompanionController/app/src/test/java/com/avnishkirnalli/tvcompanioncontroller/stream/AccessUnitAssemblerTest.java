@@ -0,0 +1,218 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AccessUnitAssemblerTest {
+    private static final int NAL_TYPE_NON_IDR = 1;
+    private static final int NAL_TYPE_IDR = 5;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+
+    private final List<Long> queuedTimestamps = new ArrayList<>();
+    private final List<Integer> queuedFlags = new ArrayList<>();
+    private int keyFramesNeeded = 0;
+    private int keyFramesRequestedByQueue = 0;
+
+    private final AccessUnitAssembler.Listener listener = new AccessUnitAssembler.Listener() {
+        @Override
+        public void onAccessUnitQueued(long timestamp, int flags, boolean resumePoint) {
+            queuedTimestamps.add(timestamp);
+            queuedFlags.add(flags);
+        }
+
+        @Override
+        public void onKeyFrameNeeded() {
+            keyFramesNeeded++;
+        }
+    };
+
+    private FrameQueue frameQueue = new FrameQueue(16, 4096, () -> keyFramesRequestedByQueue++);
+    private AccessUnitAssembler assembler = new AccessUnitAssembler(frameQueue, listener);
+
+    private static byte[] nalUnit(int type, int length) {
+        byte[] nal = new byte[length];
+        nal[0] = (byte) (0x60 | type);
+        for (int i = 1; i < length; i++) {
+            nal[i] = (byte) (i * 7 + 1);
+        }
+        return nal;
+    }
+
+    private void add(int type, long timestamp) {
+        byte[] nal = nalUnit(type, 40);
+        assembler.addNalUnit(nal, 0, nal.length, timestamp);
+    }
+
+    private void frame(int type, long timestamp) {
+        add(type, timestamp);
+        assembler.endAccessUnit(-1);
+    }
+
+    private void idr(long timestamp) {
+        add(NAL_TYPE_SPS, timestamp);
+        add(NAL_TYPE_PPS, timestamp);
+        add(NAL_TYPE_IDR, timestamp);
+        add(NAL_TYPE_IDR, timestamp);
+        assembler.endAccessUnit(-1);
+    }
+
+    @Test
+    public void queuesIntactFramesWithKeyFrameFlag() {
+        idr(0);
+        frame(NAL_TYPE_NON_IDR, 3000);
+        frame(NAL_TYPE_NON_IDR, 6000);
+
+        assertEquals(3, assembler.getAccessUnits());
+        assertEquals(3, frameQueue.getDepth());
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, (int) queuedFlags.get(0));
+        assertEquals(0, (int) queuedFlags.get(1));
+        assertFalse(assembler.isWaitingForKeyFrame());
+    }
+
+    @Test
+    public void dropsDamagedFrameAndItsDependentsUntilIdr() {
+        idr(0);
+        add(NAL_TYPE_NON_IDR, 3000);
+        assembler.onSequenceGap(); // Second slice of the frame lost
+        add(NAL_TYPE_NON_IDR, 3000);
+        assembler.endAccessUnit(-1);
+        frame(NAL_TYPE_NON_IDR, 6000);
+        frame(NAL_TYPE_NON_IDR, 9000);
+
+        assertEquals(1, queuedTimestamps.size());
+        assertTrue(assembler.isWaitingForKeyFrame());
+        assertEquals(1, keyFramesNeeded);
+        assertEquals(1, assembler.getDamagedFrames());
+        assertEquals(2, assembler.getSkippedFrames());
+
+        idr(12000);
+        frame(NAL_TYPE_NON_IDR, 15000);
+        assertFalse(assembler.isWaitingForKeyFrame());
+        assertEquals(3, queuedTimestamps.size());
+        assertEquals(12000L, (long) queuedTimestamps.get(1));
+        assertEquals(15000L, (long) queuedTimestamps.get(2));
+    }
+
+    @Test
+    public void lostHeadOfNextIdrIsNotTakenAsResumePoint() {
+        frame(NAL_TYPE_NON_IDR, 0);
+        // The SPS, PPS and first slice of a two-slice IDR are lost right after a complete frame
+        assembler.onSequenceGap();
+        add(NAL_TYPE_IDR, 3000);
+        assembler.endAccessUnit(-1);
+
+        assertEquals(1, queuedTimestamps.size());
+        assertEquals(1, assembler.getDamagedFrames());
+        assertTrue(assembler.isWaitingForKeyFrame());
+
+        frame(NAL_TYPE_NON_IDR, 6000);
+        assertEquals(1, queuedTimestamps.size());
+        idr(9000);
+        assertEquals(2, queuedTimestamps.size());
+        assertFalse(assembler.isWaitingForKeyFrame());
+    }
+
+    @Test
+    public void gapInsideAFrameDoesNotDamageTheNextOne() {
+        idr(0);
+        add(NAL_TYPE_NON_IDR, 3000);
+        assembler.onSequenceGap();
+        add(NAL_TYPE_NON_IDR, 3000); // The gap was in the middle of this frame
+        assembler.endAccessUnit(-1);
+        idr(6000);
+
+        assertEquals(1, assembler.getDamagedFrames());
+        assertEquals(2, queuedTimestamps.size());
+        assertEquals(6000L, (long) queuedTimestamps.get(1));
+        assertFalse(assembler.isWaitingForKeyFrame());
+    }
+
+    @Test
+    public void lostMarkerPacketDamagesBothFramesAroundTheGap() {
+        idr(0);
+        add(NAL_TYPE_NON_IDR, 3000);
+        assembler.onSequenceGap(); // The rest of this frame, and possibly the head of the next, were lost
+        add(NAL_TYPE_IDR, 6000);
+        assembler.endAccessUnit(-1);
+
+        assertEquals(1, queuedTimestamps.size());
+        assertEquals(2, assembler.getDamagedFrames());
+        assertEquals(1, assembler.getIncompleteAccessUnits());
+        assertTrue(assembler.isWaitingForKeyFrame());
+    }
+
+    @Test
+    public void resumesAtSeiRecoveryPoint() {
+        idr(0);
+        assembler.onSequenceGap();
+        frame(NAL_TYPE_NON_IDR, 3000);
+        assertTrue(assembler.isWaitingForKeyFrame());
+
+        byte[] sei = {0x06, 6, 2, (byte) 0x80, 0, (byte) 0x80}; // recovery_point, recovery_frame_cnt 0
+        assembler.addNalUnit(sei, 0, sei.length, 6000);
+        add(NAL_TYPE_NON_IDR, 6000);
+        assembler.endAccessUnit(-1);
+
+        assertFalse(assembler.isWaitingForKeyFrame());
+        assertEquals(2, queuedTimestamps.size());
+        assertEquals(6000L, (long) queuedTimestamps.get(1));
+    }
+
+    @Test
+    public void parameterSetsGoThroughWhileWaiting() {
+        idr(0);
+        assembler.onSequenceGap();
+        frame(NAL_TYPE_NON_IDR, 3000);
+
+        add(NAL_TYPE_SPS, 6000);
+        add(NAL_TYPE_PPS, 6000);
+        assembler.endAccessUnit(-1);
+
+        assertEquals(2, queuedTimestamps.size());
+        assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, (int) queuedFlags.get(1));
+        assertTrue(assembler.isWaitingForKeyFrame());
+    }
+
+    @Test
+    public void reassemblesFragmentedNalUnitsAndDropsOrphanFragments() {
+        byte[] slice = nalUnit(NAL_TYPE_IDR, 300);
+        assembler.beginFragmentedNalUnit(slice[0], 0);
+        assembler.appendFragment(slice, 1, 150, 0, false);
+        assembler.appendFragment(slice, 151, 149, 0, true);
+        assembler.endAccessUnit(-1);
+        assertEquals(1, queuedTimestamps.size());
+
+        // The start fragment of the next frame's slice is lost
+        assembler.onSequenceGap();
+        assembler.appendFragment(slice, 151, 149, 3000, true);
+        assembler.endAccessUnit(-1);
+        assertEquals(1, queuedTimestamps.size());
+        assertTrue(assembler.isWaitingForKeyFrame());
+    }
+
+    @Test
+    public void countsOnlyFramesTheQueueAccepted() {
+        frameQueue = new FrameQueue(2, 4096, () -> keyFramesRequestedByQueue++);
+        assembler = new AccessUnitAssembler(frameQueue, listener);
+        idr(0);
+        frame(NAL_TYPE_NON_IDR, 3000);
+        frame(NAL_TYPE_NON_IDR, 6000); // Ring full: dropped, and the queue waits for a keyframe
+        assertEquals(1, keyFramesRequestedByQueue);
+
+        frameQueue.remove();
+        frameQueue.remove();
+        frame(NAL_TYPE_NON_IDR, 9000); // Refused by the queue
+        assertEquals(2, assembler.getAccessUnits());
+        assertEquals(2, queuedTimestamps.size());
+
+        idr(12000);
+        assertEquals(3, assembler.getAccessUnits());
+    }
+}
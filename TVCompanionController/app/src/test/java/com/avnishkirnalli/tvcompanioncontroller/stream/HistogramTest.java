@@ -0,0 +1,68 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    private final Histogram histogram = new Histogram(10, 20, 50, 100);
+
+    @Test
+    public void reportsZerosWhenEmpty() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void tracksCountMeanAndMax() {
+        histogram.record(5);
+        histogram.record(15);
+        histogram.record(40);
+
+        assertEquals(3, histogram.getCount());
+        assertEquals(20, histogram.getMean());
+        assertEquals(40, histogram.getMax());
+    }
+
+    @Test
+    public void percentileIsTheBoundOfTheBucketItFallsIn() {
+        for (int i = 0; i < 50; i++) histogram.record(8);
+        for (int i = 0; i < 49; i++) histogram.record(18);
+        histogram.record(90);
+
+        assertEquals(10, histogram.getPercentile(0.5));
+        assertEquals(20, histogram.getPercentile(0.99));
+        assertEquals(90, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void boundsAreInclusive() {
+        histogram.record(10);
+        histogram.record(20);
+
+        assertEquals(10, histogram.getPercentile(0.5));
+        assertEquals(20, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void percentileNeverExceedsMax() {
+        for (int i = 0; i < 100; i++) histogram.record(60 + i % 10);
+
+        assertEquals(69, histogram.getMax());
+        assertEquals(69, histogram.getPercentile(0.5));
+        assertEquals(69, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void valuesAboveTheLastBoundReportMax() {
+        histogram.record(5);
+        histogram.record(250);
+        histogram.record(1000);
+
+        assertEquals(10, histogram.getPercentile(0.3));
+        assertEquals(1000, histogram.getPercentile(0.99));
+        assertEquals(1000, histogram.getMax());
+    }
+}
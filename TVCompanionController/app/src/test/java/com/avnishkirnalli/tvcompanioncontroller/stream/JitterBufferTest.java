@@ -0,0 +1,182 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class JitterBufferTest {
+    private final Random random = new Random(7);
+    private final List<byte[]> released = new ArrayList<>();
+    private final JitterBuffer jitterBuffer = new JitterBuffer(
+            (packet, length) -> released.add(Arrays.copyOf(packet, length)), 20, 200);
+
+    private byte[] mediaPacket(int seq, int timestamp, boolean marker, int payloadLength) {
+        byte[] packet = new byte[12 + payloadLength];
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) ((marker ? 0x80 : 0) | 96);
+        ByteBuffer.wrap(packet).putShort(2, (short) seq).putInt(4, timestamp).putInt(8, 0x12345678);
+        for (int i = 12; i < packet.length; i++) {
+            packet[i] = (byte) random.nextInt();
+        }
+        return packet;
+    }
+
+    // RFC 5109 FEC packet over consecutive media packets, laid out the way the TV's FecEncoder sends it
+    private static byte[] fecPacket(byte[]... media) {
+        int protectionLength = 0;
+        for (byte[] packet : media) {
+            protectionLength = Math.max(protectionLength, packet.length - 12);
+        }
+        byte[] fec = new byte[12 + 10 + 4 + protectionLength];
+        fec[0] = (byte) 0x80;
+        fec[1] = (byte) JitterBuffer.FEC_PAYLOAD_TYPE;
+        int byte0 = 0;
+        int byte1 = 0;
+        int timestamp = 0;
+        int length = 0;
+        for (byte[] packet : media) {
+            byte0 ^= packet[0];
+            byte1 ^= packet[1];
+            timestamp ^= ByteBuffer.wrap(packet).getInt(4);
+            length ^= packet.length - 12;
+            for (int i = 12; i < packet.length; i++) {
+                fec[26 + i - 12] ^= packet[i];
+            }
+        }
+        int mask = ((1 << media.length) - 1) << (16 - media.length);
+        ByteBuffer.wrap(fec, 12, 14)
+                .put((byte) (byte0 & 0x3F))
+                .put((byte) byte1)
+                .putShort(ByteBuffer.wrap(media[0]).getShort(2))
+                .putInt(timestamp)
+                .putShort((short) length)
+                .putShort((short) protectionLength)
+                .putShort((short) mask);
+        return fec;
+    }
+
+    private void receive(byte[] packet) {
+        jitterBuffer.onMediaPacket(packet, packet.length);
+    }
+
+    @Test
+    public void releasesCompleteAccessUnitsInOrder() {
+        byte[] a = mediaPacket(5, 0, false, 100);
+        byte[] b = mediaPacket(6, 0, true, 100);
+        byte[] c = mediaPacket(7, 3000, true, 100);
+        receive(a);
+        assertEquals(0, released.size()); // Waiting for the marker
+        receive(b);
+        receive(c);
+        assertEquals(3, released.size());
+        assertArrayEquals(a, released.get(0));
+        assertArrayEquals(c, released.get(2));
+    }
+
+    @Test
+    public void rebuildsSingleLossOfAGroupFromFec() {
+        byte[][] first = {mediaPacket(0, 0, false, 500), mediaPacket(1, 0, true, 80)};
+        receive(first[0]);
+        receive(first[1]);
+        byte[] firstFec = fecPacket(first);
+        jitterBuffer.onFecPacket(firstFec, firstFec.length);
+
+        byte[][] frame = {
+                mediaPacket(2, 3000, false, 1200),
+                mediaPacket(3, 3000, false, 1200),
+                mediaPacket(4, 3000, false, 640),
+                mediaPacket(5, 3000, true, 31),
+        };
+        receive(frame[0]);
+        receive(frame[2]);
+        receive(frame[3]);
+        assertEquals("held behind the hole", 2, released.size());
+
+        byte[] fec = fecPacket(frame);
+        jitterBuffer.onFecPacket(fec, fec.length);
+        assertEquals(6, released.size());
+        for (int i = 0; i < frame.length; i++) {
+            assertArrayEquals("packet " + (2 + i), frame[i], released.get(2 + i));
+        }
+        assertEquals(1, jitterBuffer.getRecoveredPackets());
+        assertEquals(0, jitterBuffer.getLostPackets());
+    }
+
+    @Test
+    public void rebuildsLostMarkerPacket() {
+        byte[] warmUp = mediaPacket(0, 0, true, 10);
+        receive(warmUp);
+        byte[] warmUpFec = fecPacket(warmUp);
+        jitterBuffer.onFecPacket(warmUpFec, warmUpFec.length);
+
+        byte[][] frame = {mediaPacket(1, 3000, false, 900), mediaPacket(2, 3000, true, 400)};
+        receive(frame[0]);
+        byte[] fec = fecPacket(frame);
+        jitterBuffer.onFecPacket(fec, fec.length);
+
+        assertEquals(3, released.size());
+        assertArrayEquals(frame[1], released.get(2));
+    }
+
+    @Test
+    public void givesUpWhenTheGroupLostTwoPackets() {
+        byte[] warmUp = mediaPacket(0, 0, true, 10);
+        receive(warmUp);
+        byte[] warmUpFec = fecPacket(warmUp);
+        jitterBuffer.onFecPacket(warmUpFec, warmUpFec.length);
+
+        byte[][] frame = {
+                mediaPacket(1, 3000, false, 300),
+                mediaPacket(2, 3000, false, 300),
+                mediaPacket(3, 3000, false, 300),
+                mediaPacket(4, 3000, true, 300),
+        };
+        receive(frame[0]);
+        receive(frame[3]);
+        byte[] fec = fecPacket(frame);
+        jitterBuffer.onFecPacket(fec, fec.length);
+
+        assertEquals(0, jitterBuffer.getRecoveredPackets());
+        assertEquals(2, jitterBuffer.getLostPackets());
+        assertEquals(3, released.size()); // The warm-up frame and the damaged one, around the hole
+        assertArrayEquals(frame[3], released.get(2));
+    }
+
+    @Test
+    public void givesUpOnAllOverdueHolesInOnePass() throws Exception {
+        List<Integer> lost = new ArrayList<>();
+        jitterBuffer.setLossListener(new JitterBuffer.LossListener() {
+            @Override
+            public void onPacketsMissing(int pid, int blp) {
+            }
+
+            @Override
+            public void onPacketsLost(int count) {
+                lost.add(count);
+            }
+        });
+        jitterBuffer.setJitterMs(0); // Playout delay at its 20 ms floor
+
+        // A burst with two separate holes: 1 and 4 never arrive
+        receive(mediaPacket(0, 0, true, 100));
+        receive(mediaPacket(2, 3000, true, 100));
+        receive(mediaPacket(3, 6000, true, 100));
+        receive(mediaPacket(5, 9000, true, 100));
+        assertEquals(1, released.size());
+
+        jitterBuffer.checkTimeout();
+        assertEquals("not overdue yet", 1, released.size());
+
+        Thread.sleep(40);
+        jitterBuffer.checkTimeout();
+        assertEquals(4, released.size());
+        assertEquals(2, jitterBuffer.getLostPackets());
+        assertEquals(Arrays.asList(1, 1), lost);
+    }
+}
@@ -0,0 +1,131 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReceiverStatisticsTest {
+    private static final long FRAME_TICKS = 3000; // 30 fps at 90 kHz
+    private static final long FRAME_US = 33_333;
+
+    private final ReceiverStatistics statistics = new ReceiverStatistics();
+
+    // One packet per frame, sent and received at a steady rate
+    private void receive(int firstSeq, int count, int skipEvery) {
+        for (int i = 0; i < count; i++) {
+            if (skipEvery > 0 && i % skipEvery == skipEvery / 2) continue;
+            statistics.onPacket((firstSeq + i) & 0xFFFF, i * FRAME_TICKS, i * FRAME_US);
+        }
+    }
+
+    @Test
+    public void reportsNoLossForAnUnbrokenSequence() {
+        receive(100, 50, 0);
+        statistics.prepareReport();
+
+        assertEquals(149, statistics.getExtendedHighestSeq());
+        assertEquals(0, statistics.getFractionLost());
+        assertEquals(0, statistics.getCumulativeLost());
+    }
+
+    @Test
+    public void reportsLossPerIntervalAndCumulatively() {
+        receive(0, 100, 10); // Every tenth packet lost
+        statistics.prepareReport();
+        assertEquals(10, statistics.getCumulativeLost());
+        assertEquals(10 * 256 / 100, statistics.getFractionLost());
+
+        for (int seq = 100; seq < 200; seq++) {
+            statistics.onPacket(seq, seq * FRAME_TICKS, seq * FRAME_US);
+        }
+        statistics.prepareReport();
+        assertEquals(10, statistics.getCumulativeLost());
+        assertEquals(0, statistics.getFractionLost());
+    }
+
+    @Test
+    public void extendsSequenceNumbersAcrossWraparound() {
+        receive(65_530, 20, 0);
+        statistics.prepareReport();
+
+        assertEquals(65_536 + 13, statistics.getExtendedHighestSeq());
+        assertEquals(0, statistics.getCumulativeLost());
+    }
+
+    @Test
+    public void countsReorderedPacketsWithoutMovingTheHighestSequence() {
+        statistics.onPacket(10, 0, 0);
+        statistics.onPacket(12, 0, 0);
+        statistics.onPacket(11, 0, 0);
+        statistics.prepareReport();
+
+        assertEquals(12, statistics.getExtendedHighestSeq());
+        assertEquals(0, statistics.getCumulativeLost());
+    }
+
+    @Test
+    public void ignoresAStrayPacketFarFromTheSequence() {
+        receive(1000, 10, 10); // 1005 lost
+        statistics.onPacket(40_000, 0, 0);
+        statistics.onPacket(1010, 0, 0);
+        statistics.prepareReport();
+
+        assertEquals(1010, statistics.getExtendedHighestSeq());
+        assertEquals(1, statistics.getCumulativeLost());
+    }
+
+    @Test
+    public void restartsWhenTheSenderJumpsToANewSequence() {
+        receive(1000, 10, 0);
+        statistics.onPacket(40_000, 0, 0);
+        statistics.onPacket(40_001, 0, 0);
+        statistics.onPacket(40_002, 0, 0);
+        statistics.prepareReport();
+
+        assertEquals(40_002, statistics.getExtendedHighestSeq());
+        assertEquals(0, statistics.getCumulativeLost());
+    }
+
+    @Test
+    public void jitterIsZeroForConstantTransitTime() {
+        receive(0, 200, 0);
+        assertEquals(0, statistics.getJitter());
+    }
+
+    @Test
+    public void jitterConvergesToTheTransitTimeVariation() {
+        // Every other packet is delayed by 10 ms, so each transit time differs from the last by 900 ticks
+        for (int i = 0; i < 500; i++) {
+            long delayUs = i % 2 == 0 ? 0 : 10_000;
+            statistics.onPacket(i, i * FRAME_TICKS, i * FRAME_US + delayUs);
+        }
+        assertEquals(900, statistics.getJitter(), 10);
+    }
+
+    @Test
+    public void jitterStaysSteadyWhenTheTimestampWraps() {
+        long firstTimestamp = 0x1_0000_0000L - 100 * FRAME_TICKS;
+        for (int i = 0; i < 200; i++) {
+            statistics.onPacket(i, (firstTimestamp + i * FRAME_TICKS) & 0xFFFFFFFFL, i * FRAME_US);
+        }
+        statistics.prepareReport();
+        assertEquals(0, statistics.getJitter());
+        assertEquals(0, statistics.getDelayGradientUs(), 1000);
+    }
+
+    @Test
+    public void accumulatesDelayGradientPerFrame() {
+        // Three packets per frame; each frame arrives 1 ms later relative to its timestamp than the one before
+        int seq = 0;
+        for (int frame = 0; frame < 11; frame++) {
+            for (int packet = 0; packet < 3; packet++) {
+                statistics.onPacket(seq++, frame * FRAME_TICKS, frame * (FRAME_US + 1000) + packet * 100);
+            }
+        }
+        statistics.prepareReport();
+        assertEquals(9 * 1000, statistics.getDelayGradientUs());
+
+        statistics.prepareReport();
+        assertEquals(0, statistics.getDelayGradientUs());
+    }
+}
@@ -0,0 +1,209 @@
+package com.avnishkirnalli.tvcompanioncontroller.stream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SequenceParameterSetTest {
+
+    // Writes an SPS bit by bit and inserts emulation prevention bytes like an encoder would
+    private static class SpsWriter {
+        private final ByteArrayOutputStream rbsp = new ByteArrayOutputStream();
+        private int currentByte = 0;
+        private int bitCount = 0;
+
+        SpsWriter bit(boolean value) {
+            currentByte = (currentByte << 1) | (value ? 1 : 0);
+            if (++bitCount == 8) {
+                rbsp.write(currentByte);
+                currentByte = 0;
+                bitCount = 0;
+            }
+            return this;
+        }
+
+        SpsWriter bits(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                bit(((value >> i) & 1) != 0);
+            }
+            return this;
+        }
+
+        SpsWriter ue(int value) {
+            long codeNum = value + 1L;
+            int length = 64 - Long.numberOfLeadingZeros(codeNum);
+            bits(0, length - 1);
+            return bits(codeNum, length);
+        }
+
+        SpsWriter se(int value) {
+            return ue(value > 0 ? 2 * value - 1 : -2 * value);
+        }
+
+        ByteBuffer toNalUnit() {
+            bit(true); // rbsp_stop_one_bit
+            while (bitCount != 0) {
+                bit(false);
+            }
+            ByteArrayOutputStream nal = new ByteArrayOutputStream();
+            nal.write(0x67);
+            int zeros = 0;
+            for (byte b : rbsp.toByteArray()) {
+                if (zeros >= 2 && (b & 0xFF) <= 3) {
+                    nal.write(3);
+                    zeros = 0;
+                }
+                nal.write(b);
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            return ByteBuffer.wrap(nal.toByteArray());
+        }
+    }
+
+    private static SpsWriter header(int profileIdc, int levelIdc) {
+        return new SpsWriter().bits(profileIdc, 8).bits(0x40, 8).bits(levelIdc, 8).ue(0);
+    }
+
+    // log2_max_frame_num_minus4 to gaps_in_frame_num_value_allowed_flag with pic_order_cnt_type 0
+    private static SpsWriter frameNumAndPicOrder(SpsWriter writer) {
+        return writer.ue(0).ue(0).ue(2).ue(1).bit(false);
+    }
+
+    private static SequenceParameterSet parse(ByteBuffer nal) {
+        return SequenceParameterSet.parse(nal, 0, nal.limit());
+    }
+
+    private static SpsWriter high1080p() {
+        SpsWriter writer = header(100, 42)
+                .ue(1).ue(0).ue(0).bit(false).bit(false); // 4:2:0, 8 bit, no scaling matrix
+        frameNumAndPicOrder(writer)
+                .ue(119).ue(67).bit(true).bit(true) // 120x68 macroblocks, frame_mbs_only
+                .bit(true).ue(0).ue(0).ue(0).ue(4); // Crop 8 lines at the bottom
+        return writer;
+    }
+
+    @Test
+    public void parsesHighProfile1080pWithCroppingAndTiming() {
+        SpsWriter writer = high1080p().bit(true) // VUI
+                .bit(true).bits(255, 8).bits(1, 16).bits(1, 16) // Extended_SAR 1:1
+                .bit(false) // overscan
+                .bit(true).bits(5, 3).bit(false).bit(true).bits(1, 8).bits(1, 8).bits(1, 8) // BT.709
+                .bit(false) // chroma_loc
+                .bit(true).bits(1, 32).bits(120, 32).bit(true); // timing, fixed_frame_rate_flag
+        ByteBuffer nal = writer.toNalUnit();
+        SequenceParameterSet sps = parse(nal);
+
+        assertNotNull(sps);
+        assertEquals(100, sps.getProfileIdc());
+        assertEquals(0x40, sps.getConstraintFlags());
+        assertEquals(42, sps.getLevelIdc());
+        assertEquals(1920, sps.getWidth());
+        assertEquals(1080, sps.getHeight());
+        assertEquals(60f, sps.getFrameRate(), 0.001f);
+    }
+
+    @Test
+    public void skipsEmulationPreventionBytes() {
+        // num_units_in_tick = 1 is 31 zero bits, which the writer has to break up with 03 bytes
+        ByteBuffer nal = high1080p().bit(true)
+                .bit(false).bit(false).bit(false).bit(false)
+                .bit(true).bits(1, 32).bits(50, 32)
+                .toNalUnit();
+        boolean escaped = false;
+        for (int i = 2; i < nal.limit(); i++) {
+            escaped |= nal.get(i - 2) == 0 && nal.get(i - 1) == 0 && nal.get(i) == 3;
+        }
+        assertTrue(escaped);
+
+        SequenceParameterSet sps = parse(nal);
+        assertNotNull(sps);
+        assertEquals(1080, sps.getHeight());
+        assertEquals(25f, sps.getFrameRate(), 0.001f);
+    }
+
+    @Test
+    public void parsesBaselineWithoutVui() {
+        SpsWriter writer = header(66, 31);
+        frameNumAndPicOrder(writer)
+                .ue(79).ue(44).bit(true).bit(true) // 80x45 macroblocks
+                .bit(false) // No cropping
+                .bit(false); // No VUI
+        SequenceParameterSet sps = parse(writer.toNalUnit());
+
+        assertNotNull(sps);
+        assertEquals(66, sps.getProfileIdc());
+        assertEquals(1280, sps.getWidth());
+        assertEquals(720, sps.getHeight());
+        assertEquals(0f, sps.getFrameRate(), 0f);
+        assertEquals("1280x720, profile 66, level 3.1", sps.toString());
+    }
+
+    @Test
+    public void doublesMapUnitsAndCropUnitsForFieldCoding() {
+        SpsWriter writer = header(77, 40);
+        frameNumAndPicOrder(writer)
+                .ue(119).ue(33).bit(false).bit(false).bit(true) // 34 field map units, not mbaff
+                .bit(true).ue(0).ue(0).ue(0).ue(2) // 2 crop units of 4 lines each
+                .bit(false);
+        SequenceParameterSet sps = parse(writer.toNalUnit());
+
+        assertNotNull(sps);
+        assertEquals(1920, sps.getWidth());
+        assertEquals(1080, sps.getHeight());
+    }
+
+    @Test
+    public void skipsScalingMatrixAndPicOrderCountType1() {
+        SpsWriter writer = header(100, 40)
+                .ue(1).ue(0).ue(0).bit(false)
+                .bit(true); // seq_scaling_matrix_present_flag
+        for (int i = 0; i < 8; i++) {
+            if (i == 0) {
+                writer.bit(true);
+                for (int j = 0; j < 16; j++) {
+                    writer.se(j % 2 == 0 ? 3 : -1); // Never reaches next_scale 0, so all 16 deltas are read
+                }
+            } else if (i == 6) {
+                writer.bit(true).se(-8); // Ends the list at once with next_scale 0
+            } else {
+                writer.bit(false);
+            }
+        }
+        writer.ue(0).ue(1) // log2_max_frame_num_minus4, pic_order_cnt_type 1
+                .bit(false).se(-2).se(1).ue(2).se(4).se(-4) // Two offset_for_ref_frame
+                .ue(3).bit(false)
+                .ue(79).ue(44).bit(true).bit(true)
+                .bit(false)
+                .bit(false);
+        SequenceParameterSet sps = parse(writer.toNalUnit());
+
+        assertNotNull(sps);
+        assertEquals(1280, sps.getWidth());
+        assertEquals(720, sps.getHeight());
+    }
+
+    @Test
+    public void readsAtAnOffsetInsideALargerBuffer() {
+        ByteBuffer nal = high1080p().bit(false).toNalUnit();
+        ByteBuffer data = ByteBuffer.allocate(nal.limit() + 10);
+        data.position(6);
+        data.put(nal);
+        data.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+
+        SequenceParameterSet sps = SequenceParameterSet.parse(data, 6, nal.limit());
+        assertNotNull(sps);
+        assertEquals(1920, sps.getWidth());
+        assertEquals(1080, sps.getHeight());
+    }
+
+    @Test
+    public void returnsNullWhenTruncated() {
+        ByteBuffer nal = high1080p().bit(false).toNalUnit();
+        for (int length = 1; length < 8; length++) {
+            assertNull("length " + length, SequenceParameterSet.parse(nal, 0, length));
+        }
+    }
+}